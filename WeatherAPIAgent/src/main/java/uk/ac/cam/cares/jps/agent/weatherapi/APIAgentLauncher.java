@@ -1,3 +1,4 @@
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import netscape.javascript.JSObject;
@@ -5,10 +6,13 @@ import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
 import uk.ac.cam.cares.jps.base.timeseries.TimeSeriesClient;
 import uk.ac.cam.cares.jps.base.agent.JPSAgent;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.io.IOException;
 import java.time.OffsetDateTime;
 import java.time.chrono.JapaneseChronology;
 
+import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.BadRequestException;
@@ -22,8 +26,16 @@ public class APIAgentLauncher extends JPSAgent
     public static final String Key_AgentProp = "agentProperties";
     public static final String Key_APIProp = "apiProperties";
     public static final String Key_ClientProp = "clientProperties";
+    // Optional batch keys, each either a single string or an array of strings
+    public static final String Key_DateTime = "date_time";
+    public static final String Key_Feeds = "feeds";
     
     private static final Logger Log = LogManager.getLogger(APIAgentLauncher.class);
+    private static final ConcurrentMap<String, APIInputAgent> preparedAgents = new ConcurrentHashMap<>();
+    // One lock per agent and client properties pair, see ingestSerially
+    private static final ConcurrentMap<String, Object> ingestionLocks = new ConcurrentHashMap<>();
+    // Shared by all requests; started in init(), or by the first request when the servlet lifecycle is bypassed
+    private static IngestionPipeline pipeline;
 
 
     private static final String ARGUMENT_MISMATCH_MSG = "Need three properties files in the following order: 1) input agent 2) time series client 3) API connector.";
@@ -32,6 +44,8 @@ public class APIAgentLauncher extends JPSAgent
     private static final String INITIALIZE_ERROR_MSG = "Could not initialize time series.";
     private static final String CONNECTOR_ERROR_MSG = "Could not construct the weather station API connector needed to interact with the API!";
     private static final String GET_READINGS_ERROR_MSG = "Some readings could not be retrieved.";
+    private static final String PIPELINE_ERROR_MSG = "Could not construct the ingestion pipeline!";
+    private static final String CLUSTER_ERROR_MSG = "Could not join the cluster of agent replicas!";
 
     public JSONObject processRequestParameters(JSONObject requestparams, HttpServletRequest request)
     {
@@ -49,8 +63,13 @@ public class APIAgentLauncher extends JPSAgent
             String clientProperties = System.getenv(requestparams.getString(Key_ClientProp));
             String apiProperties = System.getenv(requestparams.getString(Key_APIProp));
             
+            List<String> dateTimes = readStringList(requestparams, Key_DateTime);
+            List<String> feeds = readStringList(requestparams, Key_Feeds);
+            
             String[] args = new String []{agentProperties,clientProperties,apiProperties};
-            jsonMessage = initializeAgent(args);
+            // Concurrent requests for the same properties set and the same batch entries, in any order, share one ingestion run
+            String flightKey = String.join(" ",args) + " " + new TreeSet<>(dateTimes) + " " + new TreeSet<>(feeds);
+            jsonMessage = IngestionCoalescer.getInstance().execute(flightKey, readReuseWindow(agentProperties), () -> ingestSerially(args, dateTimes, feeds));
             jsonMessage.accumulate("Result","TimeSeries has been updated");
 
             requestparams = jsonMessage;
@@ -65,6 +84,19 @@ public class APIAgentLauncher extends JPSAgent
     }
     
 
+    private static long readReuseWindow(String agentProperties)
+    {
+        try
+        {
+            return AgentProperties.readNonNegativeLong(AgentProperties.load(agentProperties), IngestionCoalescer.Key_ReuseWindow, IngestionCoalescer.DEFAULT_REUSE_WINDOW);
+        }
+        catch(IOException e)
+        {
+            Log.error(AGENT_ERROR_MSG,e);
+            throw new JPSRuntimeException(AGENT_ERROR_MSG,e);
+        }
+    }
+
     public boolean validateInput(JSONObject requestparams) throws BadRequestException
     {
         boolean validate = true;
@@ -88,6 +120,10 @@ public class APIAgentLauncher extends JPSAgent
 
                 if((System.getenv(agentProperties)==null) || (System.getenv(clientProperties)==null) || (System.getenv(apiproperties)==null))
                  validate=false;
+                if(validate)
+                 validate = isStringOrStringArray(requestparams, Key_DateTime) && isStringOrStringArray(requestparams, Key_Feeds);
+                if(validate)
+                 validate = readStringList(requestparams, Key_Feeds).stream().allMatch(feed -> APIConnector.FEED_PATTERN.matcher(feed).matches());
 
             }
         }
@@ -95,7 +131,64 @@ public class APIAgentLauncher extends JPSAgent
         return validate;
     }
 
+    // Absent keys are valid; present ones must hold a non-empty string or a non-empty array of non-empty strings
+    private static boolean isStringOrStringArray(JSONObject requestparams, String key)
+    {
+        if(!requestparams.has(key))
+         return true;
+        Object value = requestparams.get(key);
+        if(value instanceof String)
+         return !((String) value).trim().isEmpty();
+        if(!(value instanceof JSONArray) || ((JSONArray) value).length()==0)
+         return false;
+        JSONArray array = (JSONArray) value;
+        for(int i=0;i<array.length();i++)
+        {
+            if(!(array.get(i) instanceof String) || array.getString(i).trim().isEmpty())
+             return false;
+        }
+        return true;
+    }
+
+    private static List<String> readStringList(JSONObject requestparams, String key)
+    {
+        List<String> values = new ArrayList<>();
+        if(!requestparams.has(key))
+         return values;
+        Object value = requestparams.get(key);
+        if(value instanceof JSONArray)
+        {
+            JSONArray array = (JSONArray) value;
+            for(int i=0;i<array.length();i++)
+             values.add(array.getString(i).trim());
+        }
+        else
+        {
+            values.add(value.toString().trim());
+        }
+        return values;
+    }
+
+    // Runs for the same agent and client properties write the same series, so only one of them ingests at a time. Run
+    // concurrently, two runs with overlapping batches could both read the stored maximum time of a series before either
+    // adds its rows, and add the same rows twice.
+    private static JSONObject ingestSerially(String []args, List<String> dateTimes, List<String> feeds)
+    {
+        synchronized(ingestionLocks.computeIfAbsent(args[0] + " " + args[1], key -> new Object()))
+        {
+            return initializeAgent(args, dateTimes, feeds);
+        }
+    }
+
     public static JSONObject initializeAgent(String []args)
+    {
+        return initializeAgent(args, new ArrayList<>(), new ArrayList<>());
+    }
+
+    // Without date_times and feeds this fetches the default feed at the current time and fails if that fetch fails.
+    // Otherwise every feed is fetched at every date_time concurrently over the shared pooled client, all resulting series
+    // are written as one combined batch, and each entry reports its own outcome under "Entries".
+    public static JSONObject initializeAgent(String []args, List<String> dateTimes, List<String> feeds)
 
     {
         if(args.length!=3)
@@ -106,10 +199,102 @@ public class APIAgentLauncher extends JPSAgent
 
         Log.debug("Launcher called with the following files: " + String.join(" ",args));
 
+        JSONObject jsonMessage = new JSONObject();
+        APIInputAgent agent = preparedAgents.get(args[0] + " " + args[1]);
+        if(agent==null)
+        {
+            agent = createAgent(args[0], args[1], jsonMessage);
+        }
+        else
+        {
+            Log.info("Using the preloaded input agent");
+            jsonMessage.accumulate("Result","Preloaded Input Agent and Time Series Client Used");
+        }
+
+        APIConnector connector;
+        try
+        {
+            connector = new APIConnector(args[2]);
+        }
+        catch(IOException e)
+        {
+            Log.error(CONNECTOR_ERROR_MSG,e);
+            throw new JPSRuntimeException(CONNECTOR_ERROR_MSG,e);
+        }
+
+        Log.info("API Connector Object Initialized");
+        jsonMessage.accumulate("Result","API Connector object Initialized");
+
+        // Null unless clustering is enabled, in which case this replica only ingests the entries and mappings it holds leases for
+        ClusterCoordinator coordinator = joinCluster(args[0], args[1]);
+
+        IngestionPipeline pipeline = startPipeline(args[0]);
+        boolean batch = !dateTimes.isEmpty() || !feeds.isEmpty();
+        IngestionPipeline.Run run = pipeline.newRun(agent, batch);
+        try
+        {
+            if(batch)
+            {
+                submitBatch(run, coordinator, agent, connector, dateTimes, feeds);
+            }
+            else
+            {
+                submitEntry(run, coordinator, agent, APIConnector.DEFAULT_FEED + "@now", connector);
+            }
+        }
+        finally
+        {
+            run.await();
+        }
+        if(!batch)
+        {
+            try
+            {
+                run.throwIfFailed();
+            }
+            catch(JPSRuntimeException e)
+            {
+                Log.error(GET_READINGS_ERROR_MSG,e);
+                throw new JPSRuntimeException(GET_READINGS_ERROR_MSG,e);
+            }
+        }
+
+        Log.info(String.format("Retrieved %d weather readings", run.getItemsFetched()));
+        jsonMessage.accumulate("Result","Retrieved"+run.getItemsFetched()+" station readings");
+
+        if(run.getSeriesWritten()>0)
+        {
+            Log.info("Data updated with new API Readings");
+            jsonMessage.accumulate("Result","Data updated with new API Readings");
+        }
+        else
+        {
+            Log.info("No new weather data recorded");
+            jsonMessage.accumulate("Result","No new weather data recorded");
+        }
+        if(batch || coordinator!=null)
+        {
+            jsonMessage.put("Entries", run.getEntryResults());
+        }
+        if(coordinator!=null)
+        {
+            jsonMessage.put("Cluster", coordinator.getStatistics());
+        }
+        jsonMessage.put("Pipeline", pipeline.getStatistics());
+        if(connector.getFetcher()!=null)
+        {
+            jsonMessage.put("Upstream", connector.getFetcher().getStatistics());
+        }
+       return jsonMessage;
+    }
+
+    // Builds the agent and its time series client and creates any missing time series
+    private static APIInputAgent createAgent(String agentProperties, String clientProperties, JSONObject jsonMessage)
+    {
         APIInputAgent agent;
         try
         {
-            agent = new APIInputAgent(args[0]);
+            agent = new APIInputAgent(agentProperties);
 
         }
         catch(IOException e)
@@ -119,13 +304,12 @@ public class APIAgentLauncher extends JPSAgent
         }
 
         Log.info("Input Agent object initialized");
-        JSONObject jsonMessage = new JSONObject();
         jsonMessage.accumulate("Result","Input Agent Object Initialized");
 
         TimeSeriesClient<OffsetDateTime> tsclient;
         try
         {
-            tsclient = new TimeSeriesClient<>(OffsetDateTime.class, args[1]);
+            tsclient = new TimeSeriesClient<>(OffsetDateTime.class, clientProperties);
             agent.setTsClient(tsclient);
         }
         catch(IOException e)
@@ -146,48 +330,127 @@ public class APIAgentLauncher extends JPSAgent
             Log.error(INITIALIZE_ERROR_MSG);
             throw new JPSRuntimeException(INITIALIZE_ERROR_MSG,e);
         }
+        return agent;
+    }
 
-        APIConnector connector;
+    // Prepares the agent for a properties set once, so later requests for it skip reading the mappings and checking the schema
+    public static APIInputAgent preloadAgent(String agentProperties, String clientProperties)
+    {
+        APIInputAgent agent = createAgent(agentProperties, clientProperties, new JSONObject());
+        preparedAgents.put(agentProperties + " " + clientProperties, agent);
+        // Taking the membership slot at boot lets the other replicas count this one before its first run
+        joinCluster(agentProperties, clientProperties);
+        return agent;
+    }
+
+    // Starts the shared pipeline with the pipeline keys of the given agent properties, or the defaults for null. The keys
+    // are read once: a pipeline that is already running is returned as it is.
+    public static synchronized IngestionPipeline startPipeline(String agentProperties)
+    {
+        if(pipeline!=null && pipeline.isRunning())
+        {
+            return pipeline;
+        }
         try
         {
-            connector = new APIConnector(args[2]);
+            pipeline = agentProperties==null ? new IngestionPipeline(IngestionPipeline.DEFAULT_QUEUE_CAPACITY, IngestionPipeline.DEFAULT_FETCH_THREADS,
+                    IngestionPipeline.DEFAULT_PARSE_THREADS, IngestionPipeline.DEFAULT_WRITE_THREADS) : IngestionPipeline.fromProperties(agentProperties);
         }
         catch(IOException e)
         {
-            Log.error(CONNECTOR_ERROR_MSG,e);
-            throw new JPSRuntimeException(CONNECTOR_ERROR_MSG,e);
+            Log.error(PIPELINE_ERROR_MSG,e);
+            throw new JPSRuntimeException(PIPELINE_ERROR_MSG,e);
         }
+        pipeline.start();
+        Log.info("Ingestion pipeline started");
+        return pipeline;
+    }
 
-        Log.info("API Connector Object Initialized");
-        jsonMessage.accumulate("Result","API Connector object Initialized");
-
-        JSONObject weatherReadings;
+    // Lets the shared pipeline finish the work already queued
+    public static synchronized void stopPipeline()
+    {
+        if(pipeline!=null)
+        {
+            pipeline.shutdown();
+            pipeline = null;
+        }
+    }
 
+    private static ClusterCoordinator joinCluster(String agentProperties, String clientProperties)
+    {
         try
         {
-            weatherReadings = connector.getWeatherReadings();
+            return ClusterCoordinator.forProperties(agentProperties, clientProperties);
         }
-        catch(Exception e)
+        catch(IOException | JPSRuntimeException e)
         {
-            Log.error(GET_READINGS_ERROR_MSG,e);
-            throw new JPSRuntimeException(GET_READINGS_ERROR_MSG,e);
+            Log.error(CLUSTER_ERROR_MSG,e);
+            throw new JPSRuntimeException(CLUSTER_ERROR_MSG,e);
         }
+    }
 
-        Log.info(String.format("Retrieved %d weather readings", weatherReadings.length()));
-        jsonMessage.accumulate("Result","Retrieved"+weatherReadings.getJSONArray("items").length()+" station readings");
-
-        if(!weatherReadings.isEmpty())
+    // Every entry and mapping file pair is a unit of work; the entry is fetched if this replica holds at least one of its units
+    private static void submitEntry(IngestionPipeline.Run run, ClusterCoordinator coordinator, APIInputAgent agent, String label, APIConnector connector)
+    {
+        if(coordinator==null)
         {
-            agent.updateData(weatherReadings);
-            Log.info("Data updated with new API Readings");
-            jsonMessage.accumulate("Result","Data updated with new API Readings");
-
+            run.submit(label, connector);
+            return;
         }
-        else if(weatherReadings.isEmpty())
+        Set<String> ownedMappings = new HashSet<>();
+        for(String mapping: agent.getMappingNames())
         {
-            Log.info("No new weather data recorded");
-            jsonMessage.accumulate("Result","No new weather data recorded");
+            if(coordinator.owns(label + "|" + mapping))
+            {
+                ownedMappings.add(mapping);
+            }
         }
-       return jsonMessage;
+        if(ownedMappings.isEmpty())
+        {
+            run.skip(label);
+        }
+        else
+        {
+            run.submit(label, connector, ownedMappings.size()==agent.getMappingNames().size() ? null : ownedMappings);
+        }
+    }
+
+    private static void submitBatch(IngestionPipeline.Run run, ClusterCoordinator coordinator, APIInputAgent agent, APIConnector connector, List<String> dateTimes, List<String> feeds)
+    {
+        // Repeated feeds or date_times are fetched once
+        Set<String> batchFeeds = feeds.isEmpty() ? Collections.singleton(APIConnector.DEFAULT_FEED) : new LinkedHashSet<>(feeds);
+        Set<String> batchDateTimes = new LinkedHashSet<>(dateTimes);
+        for(String feed: batchFeeds)
+        {
+            if(batchDateTimes.isEmpty())
+            {
+                APIConnector entry = new APIConnector(connector.getApiUrl(), connector.getDate(), feed, APIConnector.getSharedClient());
+                entry.setFetcher(connector.getFetcher());
+                submitEntry(run, coordinator, agent, feed + "@now", entry);
+                continue;
+            }
+            for(String dateTime: batchDateTimes)
+            {
+                APIConnector entry = new APIConnector(connector.getApiUrl(), APIConnector.encodeDateTime(dateTime), feed, APIConnector.getSharedClient());
+                entry.setFetcher(connector.getFetcher());
+                submitEntry(run, coordinator, agent, feed + "@" + dateTime, entry);
+            }
+        }
+    }
+
+    // The pipeline keys are taken from the agent properties the deployment names in WeatherAPI_AGENTPROPERTIES, if set
+    @Override
+    public void init() throws ServletException
+    {
+        super.init();
+        startPipeline(System.getenv(StandaloneLauncher.ENV_AGENT_PROPERTIES));
+    }
+
+    @Override
+    public void destroy()
+    {
+        stopPipeline();
+        APIConnector.closeSharedClient();
+        super.destroy();
     }
 }
@@ -1,22 +1,34 @@
  //package uk.ac.cam.cares.jps.agent.WeatherAPI;
 
-import org.apache.http.client.HttpResponseException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
 
 import java.io.*;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 import javax.print.attribute.standard.JobHoldUntil;
 
@@ -24,10 +36,21 @@ import javax.print.attribute.standard.JobHoldUntil;
 
 public class APIConnector
 {
+    public static final String DEFAULT_FEED = "24-hour-weather-forecast";
+    // Feeds become a segment of the request path, so only names shaped like the API's own are accepted
+    public static final Pattern FEED_PATTERN = Pattern.compile("[a-z0-9-]+");
+    // Upper bound on concurrent connections of the shared client, shared between all routes
+    private static final int MAX_POOLED_CONNECTIONS = 20;
+    private static CloseableHttpClient sharedClient;
+
     private String API_URL = "https://api.data.gov.sg/";
     private String date;
+    private String feed = DEFAULT_FEED;
+    private CloseableHttpClient httpclient;
+    private ResilientFetcher fetcher;
     
     private static final String ERRORMSG = "Weather data could not be retrieved";
+    private static final String ITEMS = "items";
     private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
   
 
@@ -37,6 +60,14 @@ public class APIConnector
         API_URL=URL;
         date = d;
     }
+
+    //Constructor for one entry of a batch: fetches the given feed at the given (already encoded) date_time over a shared client
+    public APIConnector(String URL, String d, String feed, CloseableHttpClient httpclient)
+    {
+        this(URL, d);
+        this.feed = feed;
+        this.httpclient = httpclient;
+    }
     
 
     //Constructor to initialise the variables according to the Properties file
@@ -46,12 +77,88 @@ public class APIConnector
         loadAPIConfigs(filepath);
     }
 
+    // Pooled client shared by every connector of a batch, so concurrent fetches reuse connections instead of each opening a client
+    public static synchronized CloseableHttpClient getSharedClient()
+    {
+        if(sharedClient==null)
+        {
+            IngestionEvents.HttpClientSetup event = new IngestionEvents.HttpClientSetup();
+            event.begin();
+            PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager();
+            manager.setMaxTotal(MAX_POOLED_CONNECTIONS);
+            manager.setDefaultMaxPerRoute(MAX_POOLED_CONNECTIONS);
+            sharedClient = HttpClients.custom().setConnectionManager(manager).build();
+            event.pooled = true;
+            event.commit();
+        }
+        return sharedClient;
+    }
+
+    public static synchronized void closeSharedClient()
+    {
+        if(sharedClient!=null)
+        {
+            try
+            {
+                sharedClient.close();
+            }
+            catch(IOException e)
+            {
+                LOG.warn("Could not close the shared HTTP client", e);
+            }
+            sharedClient = null;
+        }
+    }
+
+    // Encodes a date_time such as 2022-11-29T18:00:00 for the query string
+    public static String encodeDateTime(String dateTime)
+    {
+        try
+        {
+            return URLEncoder.encode(dateTime, StandardCharsets.UTF_8.name());
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            throw new JPSRuntimeException("UTF-8 is not supported", e);
+        }
+    }
+
+    public String getApiUrl()
+    {
+        return API_URL;
+    }
+
+    public String getDate()
+    {
+        return date;
+    }
+
+    public String getFeed()
+    {
+        return feed;
+    }
+
+    public ResilientFetcher getFetcher()
+    {
+        return fetcher;
+    }
+
+    // Routes getWeatherReadings through retries, the circuit breaker and hedging; null fetches once as before
+    public void setFetcher(ResilientFetcher fetcher)
+    {
+        this.fetcher = fetcher;
+    }
+
     // Obtains Weather data in JSON format containing key:value pairs
 
     public JSONObject getWeatherReadings()
     {
         try{
-            return retrieveWeatherData();
+            if(fetcher!=null)
+            {
+                return fetcher.fetch(this::retrieveWeatherData);
+            }
+            return retrieveWeatherData(null);
 
         }
         catch(IOException e)
@@ -61,35 +168,244 @@ public class APIConnector
         }
     }
 
-    private JSONObject retrieveWeatherData() throws IOException, JSONException
+    // Like getWeatherReadings, but hands the items to the consumer windowSize at a time while the response is still being
+    // read, so the whole payload is never held. Returns the other keys of the payload, e.g. the metadata of the places.
+    // A response that breaks off after the first window was handed on is not retried, as its items would be handed on twice.
+    public JSONObject streamWeatherReadings(int windowSize, ItemWindowConsumer consumer)
+    {
+        AtomicBoolean handedOn = new AtomicBoolean();
+        ItemWindowConsumer counted = (header, window) ->
+        {
+            handedOn.set(true);
+            consumer.accept(header, window);
+        };
+        ResilientFetcher.FetchCall call = cancellation ->
+        {
+            try
+            {
+                return retrieveWeatherData(cancellation, body -> streamItems(body, windowSize, counted));
+            }
+            catch(IOException e)
+            {
+                if(handedOn.get())
+                {
+                    throw new JPSRuntimeException(ERRORMSG + " after some of its items were handed on", e);
+                }
+                throw e;
+            }
+        };
+        try{
+            if(fetcher!=null)
+            {
+                return fetcher.fetchStreamed(call);
+            }
+            return call.call(null);
+        }
+        catch(IOException e)
+        {
+            LOG.error(ERRORMSG);
+            throw new JPSRuntimeException(ERRORMSG,e);
+        }
+    }
+
+    // Receives consecutive windows of the items of a payload, with the keys of the payload read so far
+    @FunctionalInterface
+    public interface ItemWindowConsumer
+    {
+        void accept(JSONObject header, JSONArray window) throws InterruptedException;
+    }
+
+    @FunctionalInterface
+    private interface BodyReader
+    {
+        JSONObject read(Reader body) throws IOException;
+    }
+
+    // Reads a payload object key by key, passing the elements of its items array to the consumer in windows of windowSize
+    // and keeping every other key in the returned header. An empty object is returned as is; any other payload without
+    // items fails like getJSONArray("items") does.
+    static JSONObject streamItems(Reader body, int windowSize, ItemWindowConsumer consumer)
+    {
+        JSONTokener tokener = new JSONTokener(body);
+        JSONObject header = new JSONObject();
+        boolean hasItems = false;
+        if(tokener.nextClean()!='{')
+        {
+            throw tokener.syntaxError("A JSONObject text must begin with '{'");
+        }
+        char c = tokener.nextClean();
+        while(c!='}')
+        {
+            if(c!='"')
+            {
+                throw tokener.syntaxError("Expected a quoted key");
+            }
+            String key = tokener.nextString('"');
+            if(tokener.nextClean()!=':')
+            {
+                throw tokener.syntaxError("Expected a ':' after a key");
+            }
+            if(ITEMS.equals(key))
+            {
+                hasItems = true;
+                streamArray(tokener, header, windowSize, consumer);
+            }
+            else
+            {
+                header.put(key, tokener.nextValue());
+            }
+            c = tokener.nextClean();
+            if(c==',')
+            {
+                c = tokener.nextClean();
+            }
+            else if(c!='}')
+            {
+                throw tokener.syntaxError("Expected a ',' or '}'");
+            }
+        }
+        if(!hasItems && !header.isEmpty())
+        {
+            throw new JSONException("JSONObject[\"" + ITEMS + "\"] not found.");
+        }
+        return header;
+    }
+
+    private static void streamArray(JSONTokener tokener, JSONObject header, int windowSize, ItemWindowConsumer consumer)
+    {
+        if(tokener.nextClean()!='[')
+        {
+            throw tokener.syntaxError("Expected the " + ITEMS + " to be a JSONArray");
+        }
+        JSONArray window = new JSONArray();
+        try
+        {
+            char c = tokener.nextClean();
+            if(c!=']')
+            {
+                tokener.back();
+                while(true)
+                {
+                    window.put(tokener.nextValue());
+                    if(window.length()==windowSize)
+                    {
+                        consumer.accept(header, window);
+                        window = new JSONArray();
+                    }
+                    c = tokener.nextClean();
+                    if(c==']')
+                    {
+                        break;
+                    }
+                    if(c!=',')
+                    {
+                        throw tokener.syntaxError("Expected a ',' or ']'");
+                    }
+                }
+            }
+            if(window.length()>0)
+            {
+                consumer.accept(header, window);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new JPSRuntimeException("Interrupted while handing on the " + ITEMS + " of a payload", e);
+        }
+    }
+
+    // A non-null cancellation may abort the request while it is in flight
+    private JSONObject retrieveWeatherData(ResilientFetcher.Cancellation cancellation) throws IOException, JSONException
+    {
+        return retrieveWeatherData(cancellation, body -> new JSONObject(new JSONTokener(body)));
+    }
+
+    private JSONObject retrieveWeatherData(ResilientFetcher.Cancellation cancellation, BodyReader reader) throws IOException, JSONException
     {
         //https://api.data.gov.sg/v1/environment/24-hour-weather-forecast?date=2022-11-24
         //https://api.data.gov.sg/v1/environment/24-hour-weather-forecast?date_time=2022-11-29T18%3A00%3A00
 
         
-        String path = API_URL+"v1/environment/24-hour-weather-forecast?date_time="+date;
+        String path = API_URL+"v1/environment/"+feed+"?date_time="+date;
 
+        if(httpclient!=null)
+        {
+            return execute(httpclient, path, cancellation, reader);
+        }
+        IngestionEvents.HttpClientSetup event = new IngestionEvents.HttpClientSetup();
+        event.begin();
         try ( CloseableHttpClient httpclient =  HttpClients.createDefault())
         {
-            HttpGet readrequest = new HttpGet(path);
-            try ( CloseableHttpResponse response = httpclient.execute(readrequest))
-            {
-                int status = response.getStatusLine().getStatusCode();
+            event.commit();
+            return execute(httpclient, path, cancellation, reader);
+        }
 
-                if(status==200) 
-                {
-                    return new JSONObject(EntityUtils.toString(response.getEntity()));
+    }
 
-                }
-                else
+    private JSONObject execute(CloseableHttpClient httpclient, String path, ResilientFetcher.Cancellation cancellation, BodyReader reader) throws IOException, JSONException
+    {
+        IngestionEvents.Fetch event = new IngestionEvents.Fetch();
+        event.begin();
+        event.feed = feed;
+        event.url = path;
+        HttpGet readrequest = new HttpGet(path);
+        if(cancellation!=null)
+        {
+            // Aborting closes the connection, so a blocked read fails at once and the pool gets its slot back
+            cancellation.onCancel(readrequest::abort);
+        }
+        try ( CloseableHttpResponse response = httpclient.execute(readrequest))
+        {
+            int status = response.getStatusLine().getStatusCode();
+            event.status = status;
+
+            if(status==200) 
+            {
+                // Parsed straight from the stream, decoded like EntityUtils.toString does, so large bodies are never held
+                // as bytes and as a string next to the parsed payload; the stream counts the bytes for the event
+                HttpEntity entity = response.getEntity();
+                Charset charset = ContentType.getOrDefault(entity).getCharset();
+                try(CountingInputStream body = new CountingInputStream(entity.getContent()))
                 {
-                    throw new HttpResponseException(status,"Data could not be retrieved due to a server error");
+                    JSONObject payload = reader.read(new InputStreamReader(body, charset==null ? StandardCharsets.ISO_8859_1 : charset));
+                    event.payloadBytes = body.count;
+                    return payload;
                 }
 
             }
+            else
+            {
+                // Consume the body so the connection can go back to the pool
+                EntityUtils.consume(response.getEntity());
+                throw new UpstreamResponseException(status,"Data could not be retrieved due to a server error",retryAfterMillis(response));
+            }
 
         }
+        finally
+        {
+            event.commit();
+        }
+    }
 
+    // Retry-After holds either a number of seconds or an HTTP date; -1 if it is absent or cannot be read
+    private static long retryAfterMillis(CloseableHttpResponse response)
+    {
+        Header header = response.getFirstHeader("Retry-After");
+        if(header==null || header.getValue()==null)
+        {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try
+        {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        }
+        catch(NumberFormatException e)
+        {
+            Date date = DateUtils.parseDate(value);
+            return date==null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
     }
 
     private void loadAPIConfigs(String filepath) throws IOException
@@ -105,9 +421,10 @@ public class APIConnector
             Properties prop = new Properties();
             prop.load(input);
 
-            if(prop.contains("weather.api_url"))
+            if(prop.containsKey("weather.api_url"))
             {
                 this.API_URL = prop.getProperty("weather.api_url");
+                this.fetcher = ResilientFetcher.fromProperties(API_URL, prop);
             }
             else
             {
@@ -141,4 +458,36 @@ public class APIConnector
         }
     }
 
+    private static final class CountingInputStream extends FilterInputStream
+    {
+        private long count = 0;
+
+        private CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if(b>=0)
+            {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            int n = super.read(buffer, offset, length);
+            if(n>0)
+            {
+                count += n;
+            }
+            return n;
+        }
+    }
+
 }
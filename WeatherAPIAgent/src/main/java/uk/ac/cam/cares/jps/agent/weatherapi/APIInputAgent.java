@@ -27,6 +27,8 @@ public class APIInputAgent
     public static final Logger Log = LogManager.getLogger(APIAgentLauncher.class);
     private TimeSeriesClient<OffsetDateTime> tsclient;
     private List<JSONKeyToIRIMapper> mappings;
+    // File names of the mappings, at the same positions as the mappings
+    private List<String> mappingNames;
     public static final String generatedIRIPrefix = TimeSeriesSparql.ns_kb + "WeatherStation";
     public static final String timeUnit = OffsetDateTime.class.getSimpleName();
     public static final String timestampKey = "start";
@@ -65,19 +67,55 @@ public class APIInputAgent
 
     }
 
+    private APIInputAgent()
+    {
+    }
+
+    // Agent reading its mappings straight from a folder, e.g. for warming up the parse path without any properties files
+    public static APIInputAgent fromMappingFolder(String mappingFolder) throws IOException
+    {
+        APIInputAgent agent = new APIInputAgent();
+        agent.readmappings(mappingFolder);
+        return agent;
+    }
+
     public int getNumberofTimeSeries()
     {
         return mappings.size();
     }
 
+    public List<String> getMappingNames()
+    {
+        return Collections.unmodifiableList(mappingNames);
+    }
+
     public void setTsClient(TimeSeriesClient<OffsetDateTime> tsclient)
     {
         this.tsclient = tsclient;
     }
 
+    public TimeSeriesClient<OffsetDateTime> getTsClient()
+    {
+        return tsclient;
+    }
+
+    // Returns the IRI the mappings assign to a JSON key such as temperaturehigh, or null if no mapping contains it
+    public String getIRI(String jsonKey)
+    {
+        for(JSONKeyToIRIMapper mapping: mappings)
+        {
+            if(mapping.getAllJSONKeys().contains(jsonKey))
+            {
+                return mapping.getIRI(jsonKey);
+            }
+        }
+        return null;
+    }
+
     private void readmappings(String mappingfolder) throws IOException
     {
         mappings = new ArrayList<>();
+        mappingNames = new ArrayList<>();
         File folder = new File(mappingfolder);
         File[] mappingFiles = folder.listFiles();
 
@@ -96,6 +134,7 @@ public class APIInputAgent
             {
                 JSONKeyToIRIMapper mapper = new JSONKeyToIRIMapper(APIInputAgent.generatedIRIPrefix, mappingFile.getAbsolutePath());
                 mappings.add(mapper);
+                mappingNames.add(mappingFile.getName());
                 mapper.saveToFile(mappingFile.getAbsolutePath());
             }
         }
@@ -106,28 +145,45 @@ public class APIInputAgent
         for(JSONKeyToIRIMapper mapping:mappings)
         {
             List<String> iris = mapping.getAllIRIs();
-            if(!timeSeriesExist(iris))
+            IngestionEvents.SchemaCheck event = new IngestionEvents.SchemaCheck();
+            event.begin();
+            try
             {
-                List<Class<?>> classes = iris.stream().map(this::getClassFromJSONKey).collect(Collectors.toList());
-                // TO clarify later on Google.
-                
-                try
+                if(!timeSeriesExist(iris, event))
                 {
-                    tsclient.initTimeSeries(iris,classes,timeUnit);
-                    Log.info(String.format("Initialized time series with the following IRIs: %s", String.join(", ", iris)));
-                
-                }
-                catch(Exception e)
-                {
-                    throw new JPSRuntimeException("Could not instantiate TimeSeries");
+                    event.initialized = true;
+                    List<Class<?>> classes = iris.stream().map(this::getClassFromJSONKey).collect(Collectors.toList());
+                    // TO clarify later on Google.
+
+                    try
+                    {
+                        tsclient.initTimeSeries(iris,classes,timeUnit);
+                        Log.info(String.format("Initialized time series with the following IRIs: %s", String.join(", ", iris)));
+
+                    }
+                    catch(Exception e)
+                    {
+                        throw new JPSRuntimeException("Could not instantiate TimeSeries");
+                    }
                 }
             }
+            catch(RuntimeException | Error e)
+            {
+                event.failed = true;
+                throw e;
+            }
+            finally
+            {
+                // Failed checks are recorded too, so a recording shows where start-up went wrong
+                event.commit();
+            }
         }
     }
-    private boolean timeSeriesExist(List<String> iris)
+    private boolean timeSeriesExist(List<String> iris, IngestionEvents.SchemaCheck event)
     {
         for (String iri:iris)
         {
+            event.irisTouched++;
             try
             {
                 if(!tsclient.checkDataHasTimeSeries(iri))
@@ -152,67 +208,274 @@ public class APIInputAgent
 
     public void updateData(JSONObject weatherReadings) throws IllegalArgumentException
     {
-        Map <String, List<?>> weatherReadingsMap = new HashMap<>();
+        writeTimeSeries(parseReadings(weatherReadings));
+    }
+
+    // Parse half of updateData: converts the API readings into one time series per mapping without touching the database
+    public List<TimeSeries<OffsetDateTime>> parseReadings(JSONObject weatherReadings) throws IllegalArgumentException
+    {
+        IngestionEvents.Parse event = new IngestionEvents.Parse();
+        event.begin();
         try
         {
-            weatherReadingsMap = jsonObjectToMap(weatherReadings);
+            Map <String, List<?>> weatherReadingsMap = new HashMap<>();
+            try
+            {
+                weatherReadingsMap = jsonObjectToMap(weatherReadings);
+            }
+            catch (Exception e)
+            {
+                throw new JPSRuntimeException (e.toString());
+            }
+
+
+            if(!weatherReadings.isEmpty())
+            {
+                List<TimeSeries<OffsetDateTime>> timeSeries;
+                try
+                {
+                    timeSeries = convertReadingsToTimeSeries(weatherReadingsMap);
+                }
+                catch (NoSuchElementException e)
+                {
+                    throw new IllegalArgumentException("Readings cannot be converted to ProperTimeSeries",e);
+                }
+                if(event.shouldCommit())
+                {
+                    event.itemCount = weatherReadings.getJSONArray("items").length();
+                    event.keyCount = weatherReadingsMap.size();
+                    event.seriesCount = timeSeries.size();
+                }
+                return timeSeries;
+            }
+            else
+            {
+                throw new IllegalArgumentException("Readings can not be empty!");
+            }
+        }
+        catch (RuntimeException | Error e)
+        {
+            event.failed = true;
+            throw e;
+        }
+        finally
+        {
+            event.commit();
         }
-        catch (Exception e) 
+    }
+
+    // Write half of updateData: prunes every time series against the stored maximum time and adds the remainder
+    public void writeTimeSeries(List<TimeSeries<OffsetDateTime>> timeSeries)
+    {
+        for (TimeSeries<OffsetDateTime> ts : timeSeries) 
         {
-            throw new JPSRuntimeException (e.toString());
+            new SeriesWriter().write(ts);
         }
+    }
+
+    // For writing one payload in consecutive chunks, see ChunkedWrite
+    public ChunkedWrite startChunkedWrite()
+    {
+        return new ChunkedWrite();
+    }
 
+    // Writes the series of consecutive chunks of one payload so the database ends up with the same rows as writing the
+    // whole series at once: the maximum time of each mapping is read before its first chunk is written, and leading rows
+    // are pruned against it only until the first chunk that has newer rows, after which everything is kept.
+    // Chunks must be written in payload order; after a failed chunk the later ones are skipped.
+    public final class ChunkedWrite
+    {
+        private final List<SeriesWriter> writers = new ArrayList<>();
+        private boolean failed = false;
 
-        if(!weatherReadings.isEmpty())
+        private ChunkedWrite()
         {
-            List<TimeSeries<OffsetDateTime>> timeSeries;
+            for(int i=0;i<mappings.size();i++)
+            {
+                writers.add(new SeriesWriter());
+            }
+        }
+
+        // False if the chunk was skipped because an earlier one failed
+        public synchronized boolean write(List<TimeSeries<OffsetDateTime>> chunk)
+        {
+            if(failed)
+            {
+                return false;
+            }
             try
             {
-                timeSeries = convertReadingsToTimeSeries(weatherReadingsMap);
+                for(int i=0;i<chunk.size();i++)
+                {
+                    writers.get(i).write(chunk.get(i));
+                }
+                return true;
             }
-            catch (NoSuchElementException e)
+            catch(RuntimeException e)
             {
-                throw new IllegalArgumentException("Readings cannot be converted to ProperTimeSeries",e);
+                failed = true;
+                throw e;
             }
-            for (TimeSeries<OffsetDateTime> ts : timeSeries) 
+        }
+
+        // Skips every later chunk, e.g. after one could not be parsed
+        public synchronized void abandon()
+        {
+            failed = true;
+        }
+
+        public synchronized boolean isFailed()
+        {
+            return failed;
+        }
+    }
+
+    private final class SeriesWriter
+    {
+        private boolean started = false;
+        private OffsetDateTime endDataTime;
+        private boolean pruning = false;
+
+        private void write(TimeSeries<OffsetDateTime> ts)
+        {
+            // Series left empty by retainMappings belong to another replica
+            if (ts.getTimes().isEmpty())
+            {
+                return;
+            }
+            IngestionEvents.Write event = new IngestionEvents.Write();
+            event.begin();
+            int rows = ts.getTimes().size();
+            event.firstIri = ts.getDataIRIs().get(0);
+            event.irisTouched = ts.getDataIRIs().size();
+            try
             {
-                // Retrieve current maximum time to avoid duplicate entries (can be null if no data is in the database yet)
-                OffsetDateTime endDataTime;
-                try 
-                 {
-                	endDataTime= tsclient.getMaxTime(ts.getDataIRIs().get(0));
-                 } 
-                 catch (Exception e) 
-                 {
-                	throw new JPSRuntimeException("Could not get max time!");
-                  }
-                OffsetDateTime startCurrentTime = ts.getTimes().get(0);
-                // If there is already a maximum time
-                if (endDataTime != null) 
+                if (!started)
                 {
+                    // Retrieve current maximum time to avoid duplicate entries (can be null if no data is in the database yet)
+                    try
+                    {
+                        endDataTime= tsclient.getMaxTime(ts.getDataIRIs().get(0));
+                    }
+                    catch (Exception e)
+                    {
+                        throw new JPSRuntimeException("Could not get max time!");
+                    }
+                    OffsetDateTime startCurrentTime = ts.getTimes().get(0);
                     // If the new data overlaps with existing timestamps, prune the new ones
-                    if (startCurrentTime.isBefore(endDataTime))
-                        ts = pruneTimeSeries(ts, endDataTime);
+                    pruning = endDataTime != null && startCurrentTime.isBefore(endDataTime);
+                    started = true;
+                }
+                if (pruning)
+                {
+                    ts = pruneTimeSeries(ts, endDataTime);
+                    pruning = ts.getTimes().isEmpty();
                 }
+                event.rowsPruned = rows - ts.getTimes().size();
                 // Only update if there actually is data
-                if (!ts.getTimes().isEmpty()) 
+                if (!ts.getTimes().isEmpty())
                 {
-                	try 
+                    try
                     {
-                      tsclient.addTimeSeriesData(ts);
-                      Log.debug(String.format("Time series updated for following IRIs: %s", String.join(", ", ts.getDataIRIs())));
+                        tsclient.addTimeSeriesData(ts);
+                        RangeQueryCache.getInstance().invalidate(ts.getDataIRIs());
+                        Log.debug(String.format("Time series updated for following IRIs: %s", String.join(", ", ts.getDataIRIs())));
                     }
                     catch (Exception e)
                     {
-                	   throw new JPSRuntimeException("Could not add timeseries!");
-                    } 
+                        throw new JPSRuntimeException("Could not add timeseries!");
+                    }
                 }
+                event.rowsWritten = ts.getTimes().size();
+            }
+            catch (RuntimeException | Error e)
+            {
+                event.failed = true;
+                throw e;
+            }
+            finally
+            {
+                // Failed writes are recorded too, with the rows they would have added left at 0
+                event.commit();
             }
         }
-        else 
+    }
+
+    // Keeps the parsed series of the named mappings and empties the others, so positions still line up with the mappings
+    public List<TimeSeries<OffsetDateTime>> retainMappings(List<TimeSeries<OffsetDateTime>> timeSeries, Set<String> ownedMappings)
+    {
+        List<TimeSeries<OffsetDateTime>> retained = new ArrayList<>();
+        for(int i=0;i<timeSeries.size();i++)
         {
-            throw new IllegalArgumentException("Readings can not be empty!");
+            TimeSeries<OffsetDateTime> ts = timeSeries.get(i);
+            if(ownedMappings.contains(mappingNames.get(i)))
+            {
+                retained.add(ts);
+                continue;
+            }
+            List<List<?>> values = new ArrayList<>();
+            for(int k=0;k<ts.getDataIRIs().size();k++)
+            {
+                values.add(new ArrayList<>());
+            }
+            retained.add(new TimeSeries<>(new ArrayList<>(), ts.getDataIRIs(), values));
+        }
+        return retained;
+    }
+
+    // Combines the parsed series of several payloads into one series per mapping, sorted by time.
+    // Every payload is parsed against the same mappings, so the series at the same position share their IRIs.
+    // When payloads overlap, the first reading for a timestamp is kept.
+    public List<TimeSeries<OffsetDateTime>> combineTimeSeries(List<List<TimeSeries<OffsetDateTime>>> parsedPayloads)
+    {
+        if(parsedPayloads.size()==1)
+        {
+            return parsedPayloads.get(0);
+        }
+        List<TimeSeries<OffsetDateTime>> combined = new ArrayList<>();
+        for(int i=0;i<mappings.size();i++)
+        {
+            List<String> iris = null;
+            // Row indices of every payload, ordered by time and then by payload order
+            List<int[]> rows = new ArrayList<>();
+            for(int p=0;p<parsedPayloads.size();p++)
+            {
+                TimeSeries<OffsetDateTime> ts = parsedPayloads.get(p).get(i);
+                if(iris==null)
+                {
+                    iris = ts.getDataIRIs();
+                }
+                for(int r=0;r<ts.getTimes().size();r++)
+                {
+                    rows.add(new int[]{p, r});
+                }
+            }
+            final int mapping = i;
+            rows.sort(Comparator.comparing(row -> parsedPayloads.get(row[0]).get(mapping).getTimes().get(row[1])));
+
+            List<OffsetDateTime> times = new ArrayList<>();
+            List<List<Object>> values = new ArrayList<>();
+            for(int k=0;k<iris.size();k++)
+            {
+                values.add(new ArrayList<>());
+            }
+            for(int[] row: rows)
+            {
+                TimeSeries<OffsetDateTime> ts = parsedPayloads.get(row[0]).get(mapping);
+                OffsetDateTime time = ts.getTimes().get(row[1]);
+                if(!times.isEmpty() && times.get(times.size()-1).isEqual(time))
+                {
+                    continue;
+                }
+                times.add(time);
+                for(int k=0;k<iris.size();k++)
+                {
+                    values.get(k).add(ts.getValues(iris.get(k)).get(row[1]));
+                }
+            }
+            combined.add(new TimeSeries<>(times, iris, new ArrayList<>(values)));
         }
+        return combined;
     }
 
     private Map<String, List<?>> jsonObjectToMap(JSONObject readings) {
@@ -417,7 +680,7 @@ public class APIInputAgent
             throw new JPSRuntimeException("Readings can not be empty!", e);
         }   
 
-        System.out.println(readingsMap);
+        Log.debug(String.format("Flattened %d readings into %d keys", readings.getJSONArray("items").length(), readingsMap.size()));
 
         // Convert the values to the proper datatype //
         Map<String, List<?>> readingsMapTyped = new HashMap<>();
@@ -0,0 +1,61 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.InvalidPropertiesFormatException;
+import java.util.Properties;
+
+
+// Helpers for the optional tuning keys of the agent properties file; a missing or blank key falls back to the default
+public final class AgentProperties
+{
+    private AgentProperties()
+    {
+    }
+
+    public static Properties load(String propertiesFile) throws IOException
+    {
+        try(InputStream input = new FileInputStream(propertiesFile))
+        {
+            Properties prop = new Properties();
+            prop.load(input);
+            return prop;
+        }
+    }
+
+    public static int readPositiveInt(Properties prop, String key, int defaultValue) throws IOException
+    {
+        long value = readLong(prop, key, defaultValue);
+        if(value<1 || value>Integer.MAX_VALUE)
+        {
+            throw new InvalidPropertiesFormatException("The key " + key + " must be a positive integer but was: " + value);
+        }
+        return (int) value;
+    }
+
+    public static long readNonNegativeLong(Properties prop, String key, long defaultValue) throws IOException
+    {
+        long value = readLong(prop, key, defaultValue);
+        if(value<0)
+        {
+            throw new InvalidPropertiesFormatException("The key " + key + " must not be negative but was: " + value);
+        }
+        return value;
+    }
+
+    private static long readLong(Properties prop, String key, long defaultValue) throws IOException
+    {
+        String value = prop.getProperty(key);
+        if(value==null || value.trim().isEmpty())
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch(NumberFormatException e)
+        {
+            throw new InvalidPropertiesFormatException("The key " + key + " must be an integer but was: " + value);
+        }
+    }
+}
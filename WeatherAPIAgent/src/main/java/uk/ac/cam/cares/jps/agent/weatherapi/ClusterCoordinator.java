@@ -0,0 +1,359 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+
+// Splits the ingestion work between replicas of the agent that share one PostgreSQL database. Every replica holds:
+// - a membership lease: a session-level advisory lock on one of a fixed number of slots, so the number of live
+//   replicas can be read from pg_locks;
+// - work leases: one advisory lock per unit of work (a feed entry and mapping file pair) it is responsible for.
+// A replica takes at most its fair share (units seen / live replicas, rounded up) and gives back leases above it on the
+// periodic rebalance. Leases live as long as the replica's connection, so when a replica dies PostgreSQL releases them
+// and the survivors pick the units up on their next run. The rebalance doubles as a heartbeat: the server ends the
+// session of a replica that has not run a query for a few intervals, so a stalled replica whose connection is still
+// open loses its leases too, instead of keeping them until the operating system gives up on the connection.
+public class ClusterCoordinator
+{
+    private static final Logger Log = LogManager.getLogger(APIAgentLauncher.class);
+
+    public static final String Key_Enabled = "WeatherAPI.cluster.enabled";
+    public static final String Key_Namespace = "WeatherAPI.cluster.namespace";
+    public static final String Key_MaxReplicas = "WeatherAPI.cluster.maxreplicas";
+    public static final String Key_RebalanceInterval = "WeatherAPI.cluster.rebalanceinterval";
+
+    // First key of the two-key advisory locks, chosen to not clash with other users of the database; work leases use the next value
+    public static final int DEFAULT_NAMESPACE = 0x57415049;
+    public static final int DEFAULT_MAX_REPLICAS = 16;
+    public static final long DEFAULT_REBALANCE_INTERVAL = 10000;
+    // Units not asked about for this many rebalance intervals are forgotten and their leases released
+    private static final int UNIT_EXPIRY_INTERVALS = 30;
+    // Sessions idle for this many rebalance intervals are ended by the server (idle_session_timeout, PostgreSQL 14+)
+    private static final int MISSED_HEARTBEATS = 3;
+    // Seconds of silence before either side probes the connection, and between probes, so dead hosts are noticed
+    private static final int KEEPALIVE_SECONDS = 10;
+    private static final int KEEPALIVE_PROBES = 3;
+    // Bound on any single lease query, so a request never waits on a database that stopped answering
+    private static final int SOCKET_TIMEOUT_SECONDS = 30;
+
+    private static final String TRY_LOCK = "SELECT pg_try_advisory_lock(?, ?)";
+    private static final String UNLOCK = "SELECT pg_advisory_unlock(?, ?)";
+    // pg_locks lists the advisory locks of every database of the server, but they only exclude each other within one
+    private static final String COUNT_MEMBERS = "SELECT count(*) FROM pg_locks WHERE locktype = 'advisory' AND granted AND objsubid = 2 AND classid::bigint = ?"
+            + " AND database = (SELECT oid FROM pg_database WHERE datname = current_database())";
+
+    private static final ConcurrentMap<String, ClusterCoordinator> coordinators = new ConcurrentHashMap<>();
+
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    private final int memberNamespace;
+    private final int workNamespace;
+    private final int maxReplicas;
+    private final long rebalanceInterval;
+    private final ScheduledExecutorService scheduler;
+
+    private Connection connection;
+    private int slot = -1;
+    private int liveMembers = 1;
+    private final Set<String> held = new LinkedHashSet<>();
+    private final Map<String, Long> lastSeen = new HashMap<>();
+
+    ClusterCoordinator(String dbUrl, String dbUser, String dbPassword, int namespace, int maxReplicas, long rebalanceInterval)
+    {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+        this.memberNamespace = namespace;
+        this.workNamespace = namespace + 1;
+        this.maxReplicas = maxReplicas;
+        this.rebalanceInterval = rebalanceInterval;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "weatherapi-cluster");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Coordinator for the database of the client properties file, or null if clustering is not enabled in the agent properties
+    public static ClusterCoordinator forProperties(String agentProperties, String clientProperties) throws IOException
+    {
+        Properties agentProp = AgentProperties.load(agentProperties);
+        if(!Boolean.parseBoolean(agentProp.getProperty(Key_Enabled, "false").trim()))
+        {
+            return null;
+        }
+        int namespace = AgentProperties.readPositiveInt(agentProp, Key_Namespace, DEFAULT_NAMESPACE);
+        int maxReplicas = AgentProperties.readPositiveInt(agentProp, Key_MaxReplicas, DEFAULT_MAX_REPLICAS);
+        long interval = Math.max(1, AgentProperties.readNonNegativeLong(agentProp, Key_RebalanceInterval, DEFAULT_REBALANCE_INTERVAL));
+
+        Properties clientProp = AgentProperties.load(clientProperties);
+        String url = clientProp.getProperty("db.url");
+        if(url==null)
+        {
+            throw new InvalidPropertiesFormatException("The client properties file does not contain the key db.url needed for the cluster leases");
+        }
+        String user = clientProp.getProperty("db.user");
+        String password = clientProp.getProperty("db.password");
+
+        ClusterCoordinator coordinator = coordinators.computeIfAbsent(url + " " + user + " " + namespace, key ->
+        {
+            ClusterCoordinator created = new ClusterCoordinator(url, user, password, namespace, maxReplicas, interval);
+            created.start();
+            return created;
+        });
+        return coordinator;
+    }
+
+    void start()
+    {
+        synchronized(this)
+        {
+            ensureConnected();
+        }
+        scheduler.scheduleWithFixedDelay(this::rebalance, rebalanceInterval, rebalanceInterval, TimeUnit.MILLISECONDS);
+    }
+
+    // Stops rebalancing and closes the connection, which gives up the membership slot and every lease at once
+    synchronized void close()
+    {
+        scheduler.shutdownNow();
+        dropConnection(null);
+    }
+
+    // True if this replica holds (or could just take) the lease for the unit
+    public synchronized boolean owns(String unit)
+    {
+        lastSeen.put(unit, System.currentTimeMillis());
+        ensureConnected();
+        if(held.contains(unit))
+        {
+            return true;
+        }
+        if(held.size()>=fairShare())
+        {
+            return false;
+        }
+        try
+        {
+            if(advisory(TRY_LOCK, workNamespace, unitKey(unit)))
+            {
+                held.add(unit);
+                Log.info("Took the lease for " + unit);
+                return true;
+            }
+            return false;
+        }
+        catch(SQLException e)
+        {
+            dropConnection(e);
+            throw new JPSRuntimeException("Could not take the lease for " + unit, e);
+        }
+    }
+
+    // Re-reads the number of live replicas, forgets idle units and gives back leases above the fair share
+    public synchronized void rebalance()
+    {
+        try
+        {
+            ensureConnected();
+            liveMembers = Math.max(1, countMembers());
+
+            long expiry = System.currentTimeMillis() - UNIT_EXPIRY_INTERVALS * rebalanceInterval;
+            Iterator<Map.Entry<String, Long>> it = lastSeen.entrySet().iterator();
+            while(it.hasNext())
+            {
+                Map.Entry<String, Long> unit = it.next();
+                if(unit.getValue()<expiry)
+                {
+                    it.remove();
+                    release(unit.getKey());
+                }
+            }
+
+            // Give back the most recently taken leases first, so long-held units stay where their data already flows
+            List<String> order = new ArrayList<>(held);
+            for(int i=order.size()-1;i>=0 && held.size()>fairShare();i--)
+            {
+                release(order.get(i));
+            }
+        }
+        catch(SQLException e)
+        {
+            // The leases may be gone with the session; reconnect and take them again rather than assume they are held
+            dropConnection(e);
+        }
+        catch(RuntimeException e)
+        {
+            Log.warn("Cluster rebalance failed, retrying on the next interval", e);
+        }
+    }
+
+    private void release(String unit) throws SQLException
+    {
+        if(held.remove(unit))
+        {
+            advisory(UNLOCK, workNamespace, unitKey(unit));
+            Log.info("Released the lease for " + unit);
+        }
+    }
+
+    private int fairShare()
+    {
+        int units = Math.max(lastSeen.size(), 1);
+        return (units + liveMembers - 1) / liveMembers;
+    }
+
+    // (Re)connects and takes a membership slot; leases of a lost connection are gone, so nothing is held afterwards
+    private void ensureConnected()
+    {
+        try
+        {
+            if(connection!=null && connection.isValid(2))
+            {
+                return;
+            }
+            dropConnection(null);
+            connection = connect();
+            for(int candidate=0;candidate<maxReplicas;candidate++)
+            {
+                if(advisory(TRY_LOCK, memberNamespace, candidate))
+                {
+                    slot = candidate;
+                    break;
+                }
+            }
+            if(slot<0)
+            {
+                throw new JPSRuntimeException("All " + maxReplicas + " replica slots are taken, raise " + Key_MaxReplicas);
+            }
+            liveMembers = Math.max(1, countMembers());
+            Log.info(String.format("Joined the cluster in slot %d with %d live replicas", slot, liveMembers));
+        }
+        catch(SQLException e)
+        {
+            dropConnection(e);
+            throw new JPSRuntimeException("Could not connect to the database holding the cluster leases", e);
+        }
+    }
+
+    private Connection connect() throws SQLException
+    {
+        Properties prop = new Properties();
+        if(dbUser!=null)
+        {
+            prop.setProperty("user", dbUser);
+        }
+        if(dbPassword!=null)
+        {
+            prop.setProperty("password", dbPassword);
+        }
+        prop.setProperty("tcpKeepAlive", "true");
+        prop.setProperty("socketTimeout", String.valueOf(SOCKET_TIMEOUT_SECONDS));
+        Connection created = DriverManager.getConnection(dbUrl, prop);
+        // The server probes its end too, so the session of a replica whose host went away ends within about a minute
+        try(Statement statement = created.createStatement())
+        {
+            statement.execute("SET tcp_keepalives_idle = " + KEEPALIVE_SECONDS);
+            statement.execute("SET tcp_keepalives_interval = " + KEEPALIVE_SECONDS);
+            statement.execute("SET tcp_keepalives_count = " + KEEPALIVE_PROBES);
+        }
+        catch(SQLException e)
+        {
+            created.close();
+            throw e;
+        }
+        long idleTimeout = Math.min(Integer.MAX_VALUE, MISSED_HEARTBEATS * rebalanceInterval);
+        try(Statement statement = created.createStatement())
+        {
+            statement.execute("SET idle_session_timeout = " + idleTimeout);
+        }
+        catch(SQLException e)
+        {
+            Log.warn("The database does not support idle_session_timeout (PostgreSQL 14+): the leases of a stalled replica"
+                    + " are only released once TCP keepalive gives up on its connection", e);
+        }
+        return created;
+    }
+
+    private void dropConnection(SQLException cause)
+    {
+        if(cause!=null)
+        {
+            Log.warn("Lost the cluster connection, all leases are released", cause);
+        }
+        held.clear();
+        slot = -1;
+        if(connection!=null)
+        {
+            try
+            {
+                connection.close();
+            }
+            catch(SQLException e)
+            {
+                Log.debug("Could not close the cluster connection: " + e.getMessage());
+            }
+            connection = null;
+        }
+    }
+
+    private boolean advisory(String sql, int namespace, int key) throws SQLException
+    {
+        try(PreparedStatement statement = connection.prepareStatement(sql))
+        {
+            statement.setInt(1, namespace);
+            statement.setInt(2, key);
+            try(ResultSet result = statement.executeQuery())
+            {
+                return result.next() && result.getBoolean(1);
+            }
+        }
+    }
+
+    private int countMembers() throws SQLException
+    {
+        try(PreparedStatement statement = connection.prepareStatement(COUNT_MEMBERS))
+        {
+            statement.setLong(1, memberNamespace);
+            try(ResultSet result = statement.executeQuery())
+            {
+                return result.next() ? result.getInt(1) : 0;
+            }
+        }
+    }
+
+    // Units are hashed onto the second lock key; two units sharing a hash simply share a lease
+    private static int unitKey(String unit)
+    {
+        return unit.hashCode();
+    }
+
+    public synchronized JSONObject getStatistics()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("slot", slot);
+        stats.put("liveReplicas", liveMembers);
+        stats.put("knownUnits", lastSeen.size());
+        stats.put("fairShare", fairShare());
+        stats.put("leases", new JSONArray(held));
+        return stats;
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.ArrayList;
+import java.util.List;
+
+
+// Picks a subset of the points of a series so that it fits a point budget while keeping its visual shape.
+// Both methods return the indices of the kept points in ascending order and always keep the first and last point.
+public final class Downsampler
+{
+    public static final String METHOD_LTTB = "lttb";
+    public static final String METHOD_MINMAX = "minmax";
+
+    private Downsampler()
+    {
+    }
+
+    public static List<Integer> downsample(String method, long[] x, double[] y, int budget)
+    {
+        if(METHOD_MINMAX.equals(method))
+        {
+            return minMax(x, y, budget);
+        }
+        return largestTriangleThreeBuckets(x, y, budget);
+    }
+
+    // Largest-Triangle-Three-Buckets (Steinarsson, 2013): per bucket, keep the point spanning the largest triangle with
+    // the point kept in the previous bucket and the average of the next bucket
+    public static List<Integer> largestTriangleThreeBuckets(long[] x, double[] y, int budget)
+    {
+        int n = x.length;
+        if(budget>=n || budget<3)
+        {
+            return budget>=n ? all(n) : firstAndLast(n);
+        }
+        List<Integer> kept = new ArrayList<>(budget);
+        kept.add(0);
+        double bucketSize = (double) (n - 2) / (budget - 2);
+        int previous = 0;
+        for(int bucket=0;bucket<budget-2;bucket++)
+        {
+            int start = (int) Math.floor(bucket * bucketSize) + 1;
+            int end = (int) Math.floor((bucket + 1) * bucketSize) + 1;
+
+            // Average of the next bucket (the last point for the final bucket)
+            int nextStart = end;
+            int nextEnd = Math.min((int) Math.floor((bucket + 2) * bucketSize) + 1, n);
+            double avgX = 0;
+            double avgY = 0;
+            if(nextStart>=nextEnd)
+            {
+                avgX = x[n-1];
+                avgY = y[n-1];
+            }
+            else
+            {
+                for(int i=nextStart;i<nextEnd;i++)
+                {
+                    avgX += x[i];
+                    avgY += y[i];
+                }
+                avgX /= (nextEnd - nextStart);
+                avgY /= (nextEnd - nextStart);
+            }
+
+            double maxArea = -1;
+            int selected = start;
+            for(int i=start;i<end;i++)
+            {
+                double area = Math.abs((x[previous] - avgX) * (y[i] - y[previous]) - (x[previous] - x[i]) * (avgY - y[previous]));
+                if(area>maxArea)
+                {
+                    maxArea = area;
+                    selected = i;
+                }
+            }
+            kept.add(selected);
+            previous = selected;
+        }
+        kept.add(n-1);
+        return kept;
+    }
+
+    // Splits the series into buckets of equal point count and keeps the minimum and maximum of each, so spikes survive
+    public static List<Integer> minMax(long[] x, double[] y, int budget)
+    {
+        int n = x.length;
+        if(budget>=n || budget<4)
+        {
+            return budget>=n ? all(n) : firstAndLast(n);
+        }
+        List<Integer> kept = new ArrayList<>(budget);
+        kept.add(0);
+        int buckets = (budget - 2) / 2;
+        double bucketSize = (double) (n - 2) / buckets;
+        for(int bucket=0;bucket<buckets;bucket++)
+        {
+            int start = (int) Math.floor(bucket * bucketSize) + 1;
+            int end = Math.min((int) Math.floor((bucket + 1) * bucketSize) + 1, n - 1);
+            if(start>=end)
+            {
+                continue;
+            }
+            int min = start;
+            int max = start;
+            for(int i=start+1;i<end;i++)
+            {
+                if(y[i]<y[min])
+                 min = i;
+                if(y[i]>y[max])
+                 max = i;
+            }
+            kept.add(Math.min(min, max));
+            if(min!=max)
+             kept.add(Math.max(min, max));
+        }
+        kept.add(n-1);
+        return kept;
+    }
+
+    // Evenly spaced points, used for series whose values cannot be compared such as forecast texts
+    public static List<Integer> stride(int n, int budget)
+    {
+        if(budget>=n || budget<2)
+        {
+            return budget>=n ? all(n) : firstAndLast(n);
+        }
+        List<Integer> kept = new ArrayList<>(budget);
+        double step = (double) (n - 1) / (budget - 1);
+        for(int i=0;i<budget;i++)
+        {
+            kept.add((int) Math.round(i * step));
+        }
+        return kept;
+    }
+
+    private static List<Integer> all(int n)
+    {
+        List<Integer> kept = new ArrayList<>(n);
+        for(int i=0;i<n;i++)
+        {
+            kept.add(i);
+        }
+        return kept;
+    }
+
+    private static List<Integer> firstAndLast(int n)
+    {
+        List<Integer> kept = new ArrayList<>();
+        if(n>0)
+         kept.add(0);
+        if(n>1)
+         kept.add(n-1);
+        return kept;
+    }
+}
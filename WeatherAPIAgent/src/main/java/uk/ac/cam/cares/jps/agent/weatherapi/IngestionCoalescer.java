@@ -0,0 +1,137 @@
+import org.json.JSONObject;
+import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+
+// Single-flight coalescing of ingestion runs: only one run per key is in flight at a time, concurrent callers wait
+// for it and share its result, and a finished result is reused for a short window before the next run may start.
+public class IngestionCoalescer
+{
+    private static final Logger Log = LogManager.getLogger(APIAgentLauncher.class);
+
+    public static final String Key_ReuseWindow = "WeatherAPI.coalesce.reusewindow";
+    // Milliseconds a finished result is handed to new callers instead of starting another run
+    public static final long DEFAULT_REUSE_WINDOW = 5000;
+
+    private static final IngestionCoalescer INSTANCE = new IngestionCoalescer();
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    public static IngestionCoalescer getInstance()
+    {
+        return INSTANCE;
+    }
+
+    public JSONObject execute(String key, long reuseWindowMillis, Supplier<JSONObject> ingestion)
+    {
+        removeExpired();
+        while(true)
+        {
+            Flight existing = flights.get(key);
+            if(existing!=null)
+            {
+                if(!existing.result.isDone())
+                {
+                    Log.info("Joining the ingestion already in flight for " + key);
+                    return shared(existing);
+                }
+                if(existing.isFresh(reuseWindowMillis))
+                {
+                    Log.info("Reusing the ingestion result that finished within the last " + reuseWindowMillis + " ms for " + key);
+                    return shared(existing);
+                }
+                flights.remove(key, existing);
+                continue;
+            }
+
+            Flight flight = new Flight();
+            if(flights.putIfAbsent(key, flight)!=null)
+            {
+                continue;
+            }
+            return run(key, flight, reuseWindowMillis, ingestion);
+        }
+    }
+
+    // Keys include the batch entries of the request, so results of one-off batches are dropped here once their window
+    // has passed rather than waiting for the same key to be requested again
+    private void removeExpired()
+    {
+        flights.forEach((key, flight) ->
+        {
+            if(flight.result.isDone() && !flight.isFresh(flight.reuseWindowMillis))
+            {
+                flights.remove(key, flight);
+            }
+        });
+    }
+
+    private JSONObject run(String key, Flight flight, long reuseWindowMillis, Supplier<JSONObject> ingestion)
+    {
+        JSONObject result;
+        try
+        {
+            result = ingestion.get();
+        }
+        catch(RuntimeException | Error e)
+        {
+            // Failures are handed to the waiting callers but never reused
+            flights.remove(key, flight);
+            flight.result.completeExceptionally(e);
+            throw e;
+        }
+        flight.reuseWindowMillis = reuseWindowMillis;
+        flight.completedAt = System.nanoTime();
+        // Snapshot before the owner's caller starts amending its own copy of the response
+        flight.result.complete(new JSONObject(result.toString()));
+        if(reuseWindowMillis<=0)
+        {
+            flights.remove(key, flight);
+        }
+        return result;
+    }
+
+    // Every caller gets its own copy since the launcher keeps accumulating into the returned object
+    private JSONObject shared(Flight flight)
+    {
+        try
+        {
+            JSONObject copy = new JSONObject(flight.result.get().toString());
+            copy.put("Coalesced", true);
+            return copy;
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new JPSRuntimeException("Interrupted while waiting for the ingestion in flight", e);
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new JPSRuntimeException("The ingestion in flight failed", e.getCause());
+        }
+    }
+
+    private static final class Flight
+    {
+        private final CompletableFuture<JSONObject> result = new CompletableFuture<>();
+        private volatile long completedAt;
+        private volatile long reuseWindowMillis;
+
+        private boolean isFresh(long reuseWindowMillis)
+        {
+            return System.nanoTime() - completedAt < reuseWindowMillis * 1_000_000L;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+// Java Flight Recorder events for the stages of an ingestion run. They are only recorded while a recording with
+// them enabled is running (see config/jfr/weatherapi.jfc); otherwise begin() and commit() are close to free.
+// Stack traces are off as each event is emitted from a single, known call site.
+public final class IngestionEvents
+{
+    private IngestionEvents()
+    {
+    }
+
+    @Name("weatherapi.HttpClientSetup")
+    @Label("HTTP Client Setup")
+    @Description("Creation of the HTTP client used to call the weather API")
+    @Category({"WeatherAPI", "Ingestion"})
+    @StackTrace(false)
+    public static class HttpClientSetup extends Event
+    {
+        @Label("Pooled")
+        public boolean pooled;
+    }
+
+    @Name("weatherapi.Fetch")
+    @Label("Fetch")
+    @Description("One request to the weather API, including reading the response body")
+    @Category({"WeatherAPI", "Ingestion"})
+    @StackTrace(false)
+    public static class Fetch extends Event
+    {
+        @Label("Feed")
+        public String feed;
+
+        @Label("URL")
+        public String url;
+
+        @Label("Status Code")
+        public int status;
+
+        @Label("Payload Size")
+        @DataAmount
+        public long payloadBytes;
+    }
+
+    @Name("weatherapi.SchemaCheck")
+    @Label("Schema Check")
+    @Description("Checking (and if needed creating) the time series of one mapping")
+    @Category({"WeatherAPI", "Ingestion"})
+    @StackTrace(false)
+    public static class SchemaCheck extends Event
+    {
+        @Label("IRIs Touched")
+        public int irisTouched;
+
+        @Label("Initialized")
+        @Description("Whether the time series had to be created")
+        public boolean initialized;
+
+        @Label("Failed")
+        public boolean failed;
+    }
+
+    @Name("weatherapi.Parse")
+    @Label("Parse")
+    @Description("Flattening one API payload into typed readings and converting them into time series")
+    @Category({"WeatherAPI", "Ingestion"})
+    @StackTrace(false)
+    public static class Parse extends Event
+    {
+        @Label("Item Count")
+        public int itemCount;
+
+        @Label("Key Count")
+        public int keyCount;
+
+        @Label("Series Count")
+        public int seriesCount;
+
+        @Label("Failed")
+        public boolean failed;
+    }
+
+    @Name("weatherapi.Write")
+    @Label("Write")
+    @Description("Max time lookup, pruning and insert of one time series")
+    @Category({"WeatherAPI", "Ingestion"})
+    @StackTrace(false)
+    public static class Write extends Event
+    {
+        @Label("First IRI")
+        public String firstIri;
+
+        @Label("IRIs Touched")
+        public int irisTouched;
+
+        @Label("Rows Written")
+        public int rowsWritten;
+
+        @Label("Rows Pruned")
+        public int rowsPruned;
+
+        @Label("Failed")
+        public boolean failed;
+    }
+
+    @Name("weatherapi.PipelineStage")
+    @Label("Pipeline Stage")
+    @Description("Handling of one item by a stage of the ingestion pipeline")
+    @Category({"WeatherAPI", "Pipeline"})
+    @StackTrace(false)
+    public static class PipelineStage extends Event
+    {
+        @Label("Stage")
+        public String stage;
+
+        @Label("Queue Depth")
+        @Description("Items still waiting in front of the stage when this one was taken")
+        public int queueDepth;
+
+        @Label("Failed")
+        public boolean failed;
+    }
+}
@@ -0,0 +1,808 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
+import uk.ac.cam.cares.jps.base.timeseries.TimeSeries;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+
+// Runs the fetch -> parse -> write flow of the agent as three stages connected by bounded queues.
+// A full queue blocks the stage feeding it, so a slow database throttles the fetches instead of piling up payloads.
+// One pipeline is shared by all requests: each request submits its entries through its own Run, so the stages of
+// different requests overlap while the queues and the writer threads are shared between them.
+public class IngestionPipeline
+{
+    private static final Logger Log = LogManager.getLogger(APIAgentLauncher.class);
+
+    public static final String Key_QueueCapacity = "WeatherAPI.pipeline.queuecapacity";
+    public static final String Key_FetchThreads = "WeatherAPI.pipeline.fetchthreads";
+    public static final String Key_ParseThreads = "WeatherAPI.pipeline.parsethreads";
+    public static final String Key_WriteThreads = "WeatherAPI.pipeline.writethreads";
+    public static final String Key_ChunkSize = "WeatherAPI.pipeline.chunksize";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+    public static final int DEFAULT_FETCH_THREADS = 2;
+    public static final int DEFAULT_PARSE_THREADS = 1;
+    // A single writer for all requests keeps the max time lookup and the insert of one series from interleaving with another write
+    public static final int DEFAULT_WRITE_THREADS = 1;
+    // Items per chunk of a payload; 0 converts and writes every payload as a whole
+    public static final int DEFAULT_CHUNK_SIZE = 0;
+
+    private static final Object POISON = new Object();
+
+    private final Stage<FetchTask> fetchStage;
+    private final Stage<ParseTask> parseStage;
+    private final Stage<WriteBatch> writeStage;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    // Items of fetched payloads queued on or being handled by a stage, or held back for a combined write
+    private final AtomicInteger itemsHeld = new AtomicInteger();
+    private final AtomicInteger peakItemsHeld = new AtomicInteger();
+    private boolean started = false;
+    private boolean stopped = false;
+
+    public IngestionPipeline(int queueCapacity, int fetchThreads, int parseThreads, int writeThreads)
+    {
+        if(queueCapacity<1 || fetchThreads<1 || parseThreads<1 || writeThreads<1)
+        {
+            throw new IllegalArgumentException("Queue capacity and the number of threads per stage must be positive");
+        }
+        fetchStage = new Stage<>("fetch", queueCapacity, fetchThreads, this::fetch);
+        parseStage = new Stage<>("parse", queueCapacity, parseThreads, this::parse);
+        writeStage = new Stage<>("write", queueCapacity, writeThreads, this::write);
+    }
+
+    // Reads the optional pipeline keys from the agent properties file, falling back to the defaults for missing keys
+    public static IngestionPipeline fromProperties(String propertiesFile) throws IOException
+    {
+        Properties prop = AgentProperties.load(propertiesFile);
+        int parseThreads = AgentProperties.readPositiveInt(prop, Key_ParseThreads, DEFAULT_PARSE_THREADS);
+        int writeThreads = AgentProperties.readPositiveInt(prop, Key_WriteThreads, DEFAULT_WRITE_THREADS);
+        long chunkSize = AgentProperties.readNonNegativeLong(prop, Key_ChunkSize, DEFAULT_CHUNK_SIZE);
+        if(chunkSize>0 && (parseThreads>1 || writeThreads>1))
+        {
+            throw new InvalidPropertiesFormatException("The key " + Key_ChunkSize + " needs a single parse and a single write thread to keep the chunks of a payload in order");
+        }
+        IngestionPipeline pipeline = new IngestionPipeline(
+                AgentProperties.readPositiveInt(prop, Key_QueueCapacity, DEFAULT_QUEUE_CAPACITY),
+                AgentProperties.readPositiveInt(prop, Key_FetchThreads, DEFAULT_FETCH_THREADS),
+                parseThreads,
+                writeThreads);
+        pipeline.setChunkSize((int) Math.min(chunkSize, Integer.MAX_VALUE));
+        return pipeline;
+    }
+
+    // When positive, the items of a payload are read from the response, converted and written that many at a time, so
+    // memory stays bounded by the chunk size and the queue capacities rather than the payload size. Payloads are then
+    // always written on their own, without combining. The single parse and write threads handle the chunks in order;
+    // see APIInputAgent.ChunkedWrite.
+    public synchronized void setChunkSize(int chunkSize)
+    {
+        if(started)
+        {
+            throw new IllegalStateException("The chunk size must be chosen before the pipeline is started");
+        }
+        if(chunkSize<0 || (chunkSize>0 && (parseStage.workers.size()>1 || writeStage.workers.size()>1)))
+        {
+            throw new IllegalArgumentException("Chunked writes need a non-negative chunk size and a single parse and write thread");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public synchronized void start()
+    {
+        if(started)
+        {
+            throw new IllegalStateException("The ingestion pipeline has already been started");
+        }
+        started = true;
+        writeStage.start();
+        parseStage.start();
+        fetchStage.start();
+    }
+
+    public synchronized boolean isRunning()
+    {
+        return started && !stopped;
+    }
+
+    // The entries of one request, written by the given agent. With combineWrites the parsed series of all its entries
+    // are held back and written as one batch once every entry has been parsed; ignored in chunked mode.
+    public Run newRun(APIInputAgent agent, boolean combineWrites)
+    {
+        return new Run(agent, combineWrites && chunkSize==0);
+    }
+
+    // Stops accepting work and lets every stage finish what is already queued, upstream first
+    public synchronized void shutdown()
+    {
+        if(!started || stopped)
+        {
+            return;
+        }
+        stopped = true;
+        try
+        {
+            fetchStage.drain();
+            parseStage.drain();
+            writeStage.drain();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new JPSRuntimeException("Interrupted while draining the ingestion pipeline", e);
+        }
+        Log.info("Ingestion pipeline drained: " + getStatistics());
+    }
+
+    // Counts the task against its run before queueing it, so the run cannot look finished while the task is in flight
+    private <T extends Task> void put(Stage<T> stage, T task) throws InterruptedException
+    {
+        task.run.queued();
+        hold(task.heldItems);
+        try
+        {
+            stage.put(task);
+        }
+        catch(InterruptedException | RuntimeException e)
+        {
+            release(task.heldItems);
+            task.run.handled();
+            throw e;
+        }
+    }
+
+    private void hold(int items)
+    {
+        peakItemsHeld.accumulateAndGet(itemsHeld.addAndGet(items), Math::max);
+    }
+
+    private void release(int items)
+    {
+        itemsHeld.addAndGet(-items);
+    }
+
+    private void fetch(FetchTask task) throws InterruptedException
+    {
+        if(chunkSize>0)
+        {
+            fetchChunks(task);
+            return;
+        }
+        Run run = task.run;
+        EntryResult entry = run.entries.get(task.label);
+        JSONObject weatherReadings = task.connector.getWeatherReadings();
+        run.payloadsFetched.incrementAndGet();
+        if(weatherReadings.isEmpty())
+        {
+            run.emptyPayloads.incrementAndGet();
+            entry.status = "empty";
+            return;
+        }
+        entry.items = weatherReadings.getJSONArray("items").length();
+        entry.status = "fetched";
+        run.itemsFetched.addAndGet(entry.items);
+        put(parseStage, new ParseTask(run, task.label, task.connector.getFeed(), weatherReadings, entry.items, task.ownedMappings, null, true));
+    }
+
+    // Each window of items is queued for parsing as soon as it has been read from the response, so neither the fetch nor
+    // the parse stage ever holds the whole payload; a full parse queue holds up reading the rest of the response
+    private void fetchChunks(FetchTask task) throws InterruptedException
+    {
+        Run run = task.run;
+        EntryResult entry = run.entries.get(task.label);
+        String feed = task.connector.getFeed();
+        APIInputAgent.ChunkedWrite chunkedWrite = run.agent.startChunkedWrite();
+        JSONObject header;
+        try
+        {
+            header = task.connector.streamWeatherReadings(chunkSize, (readSoFar, window) ->
+            {
+                boolean first = entry.items==0;
+                entry.items += window.length();
+                entry.status = "fetched";
+                run.itemsFetched.addAndGet(window.length());
+                // Station feeds name the unit of their readings in the metadata, which precedes the items
+                JSONObject readings = new JSONObject().put("items", window);
+                Object metadata = readSoFar.opt("metadata");
+                if(metadata!=null)
+                {
+                    readings.put("metadata", metadata);
+                }
+                put(parseStage, new ParseTask(run, task.label, feed, readings, window.length(), task.ownedMappings, chunkedWrite, first));
+            });
+        }
+        finally
+        {
+            run.payloadsFetched.incrementAndGet();
+        }
+        if(entry.items==0)
+        {
+            // A payload without items has nothing to write
+            run.emptyPayloads.incrementAndGet();
+            entry.status = "empty";
+        }
+        // The places are listed next to the items; the latest values were taken from the windows
+        index(task.label, feed, header);
+    }
+
+    // Places and latest values for /nearest; a payload the index cannot read must not stop the ingestion
+    private static void index(String label, String feed, JSONObject readings)
+    {
+        try
+        {
+            SpatialIndex.getInstance().capture(feed, readings);
+        }
+        catch(RuntimeException e)
+        {
+            Log.warn("Could not index the places of " + label, e);
+        }
+    }
+
+    private void parse(ParseTask task) throws InterruptedException
+    {
+        Run run = task.run;
+        EntryResult entry = run.entries.get(task.label);
+        if(task.chunkedWrite!=null)
+        {
+            parseChunk(task, entry);
+            return;
+        }
+        index(task.label, task.feed, task.readings);
+        task.timeSeries = retain(task, run.agent.parseReadings(task.readings));
+        // The raw payload is no longer needed once it has been parsed
+        task.readings = null;
+        entry.status = "parsed";
+        if(run.combineWrites)
+        {
+            // Its items stay held until the combined batch is queued
+            hold(task.heldItems);
+            run.combined.add(task);
+        }
+        else
+        {
+            put(writeStage, new WriteBatch(run, Collections.singletonList(task.label), task.timeSeries, task.heldItems, null, true));
+        }
+    }
+
+    // One window of a payload read in chunks. Windows after one that failed are dropped, the entry already reports the
+    // failure, and the chunks before it stay written.
+    private void parseChunk(ParseTask task, EntryResult entry) throws InterruptedException
+    {
+        Run run = task.run;
+        if(task.chunkedWrite.isFailed())
+        {
+            return;
+        }
+        List<TimeSeries<OffsetDateTime>> chunk;
+        try
+        {
+            index(task.label, task.feed, task.readings);
+            chunk = retain(task, run.agent.parseReadings(task.readings));
+        }
+        catch(RuntimeException | Error e)
+        {
+            task.chunkedWrite.abandon();
+            throw e;
+        }
+        task.readings = null;
+        if(task.firstChunk)
+        {
+            entry.status = "parsed";
+        }
+        put(writeStage, new WriteBatch(run, Collections.singletonList(task.label), chunk, task.heldItems, task.chunkedWrite, task.firstChunk));
+    }
+
+    private List<TimeSeries<OffsetDateTime>> retain(ParseTask task, List<TimeSeries<OffsetDateTime>> timeSeries)
+    {
+        return task.ownedMappings==null ? timeSeries : task.run.agent.retainMappings(timeSeries, task.ownedMappings);
+    }
+
+    private void write(WriteBatch batch)
+    {
+        if(batch.timeSeries.isEmpty())
+        {
+            return;
+        }
+        Run run = batch.run;
+        if(batch.chunkedWrite!=null)
+        {
+            // Chunks after a failed one are dropped, the entry already reports the failure
+            if(!batch.chunkedWrite.write(batch.timeSeries))
+            {
+                return;
+            }
+        }
+        else
+        {
+            run.agent.writeTimeSeries(batch.timeSeries);
+        }
+        // Series emptied for mappings of another replica were not written; later chunks continue series already counted
+        if(batch.countSeries)
+        {
+            run.seriesWritten.addAndGet((int) batch.timeSeries.stream().filter(ts -> !ts.getTimes().isEmpty()).count());
+        }
+        batch.labels.forEach(label -> run.entries.get(label).written());
+    }
+
+    // Queue depth and utilisation per stage since the pipeline started, i.e. across requests; the stage with the
+    // highest utilisation is the bottleneck
+    public JSONObject getStatistics()
+    {
+        JSONObject stats = new JSONObject();
+        stats.put(fetchStage.name, fetchStage.getStatistics());
+        stats.put(parseStage.name, parseStage.getStatistics());
+        stats.put(writeStage.name, writeStage.getStatistics());
+        // Not counted: the window a fetch worker is still reading
+        stats.put("itemsHeld", itemsHeld.get());
+        stats.put("peakItemsHeld", peakItemsHeld.get());
+        return stats;
+    }
+
+    // Submit every entry of the request, then await() the run before reading its results
+    public final class Run
+    {
+        private final APIInputAgent agent;
+        private final boolean combineWrites;
+        private final Queue<StageFailure> failures = new ConcurrentLinkedQueue<>();
+        // Insertion ordered so the response lists the entries in the order they were submitted
+        private final Map<String, EntryResult> entries = Collections.synchronizedMap(new LinkedHashMap<>());
+        private final List<ParseTask> combined = Collections.synchronizedList(new ArrayList<>());
+
+        private final AtomicInteger payloadsFetched = new AtomicInteger();
+        private final AtomicInteger emptyPayloads = new AtomicInteger();
+        private final AtomicInteger itemsFetched = new AtomicInteger();
+        private final AtomicInteger seriesWritten = new AtomicInteger();
+
+        // Tasks of this run queued on or being handled by any stage, guarded by the run itself
+        private int outstanding = 0;
+
+        private Run(APIInputAgent agent, boolean combineWrites)
+        {
+            this.agent = agent;
+            this.combineWrites = combineWrites;
+        }
+
+        // Blocks while the fetch queue is full
+        public void submit(String label, APIConnector connector)
+        {
+            submit(label, connector, null);
+        }
+
+        // Only the series of the given mapping files are written for this entry; null writes all of them
+        public void submit(String label, APIConnector connector, Set<String> ownedMappings)
+        {
+            register(label);
+            try
+            {
+                put(fetchStage, new FetchTask(this, label, connector, ownedMappings));
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new JPSRuntimeException("Interrupted while submitting to the ingestion pipeline", e);
+            }
+        }
+
+        // Lists an entry in the results without fetching it, e.g. when another replica is responsible for it
+        public void skip(String label)
+        {
+            register(label).status = "skipped";
+        }
+
+        private EntryResult register(String label)
+        {
+            if(!isRunning())
+            {
+                throw new IllegalStateException("The ingestion pipeline is not running");
+            }
+            EntryResult entry = new EntryResult(label);
+            if(entries.putIfAbsent(label, entry)!=null)
+            {
+                throw new IllegalArgumentException("An entry with the label " + label + " has already been submitted");
+            }
+            return entry;
+        }
+
+        // Waits until every submitted entry has been written, has failed or came back empty
+        public void await()
+        {
+            try
+            {
+                awaitHandled();
+                if(combineWrites && !combined.isEmpty())
+                {
+                    put(writeStage, combine());
+                    awaitHandled();
+                }
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new JPSRuntimeException("Interrupted while waiting for the ingestion pipeline", e);
+            }
+        }
+
+        private synchronized void queued()
+        {
+            outstanding++;
+        }
+
+        private synchronized void handled()
+        {
+            outstanding--;
+            if(outstanding==0)
+            {
+                notifyAll();
+            }
+        }
+
+        private synchronized void awaitHandled() throws InterruptedException
+        {
+            while(outstanding>0)
+            {
+                wait();
+            }
+        }
+
+        // The items held back with the parsed entries are held by the batch once it is queued
+        private WriteBatch combine()
+        {
+            List<String> labels = new ArrayList<>();
+            List<List<TimeSeries<OffsetDateTime>>> parsed = new ArrayList<>();
+            int items = 0;
+            synchronized(combined)
+            {
+                for(ParseTask task: combined)
+                {
+                    labels.add(task.label);
+                    parsed.add(task.timeSeries);
+                    items += task.heldItems;
+                }
+                combined.clear();
+            }
+            release(items);
+            try
+            {
+                return new WriteBatch(this, labels, agent.combineTimeSeries(parsed), items, null, true);
+            }
+            catch(RuntimeException e)
+            {
+                labels.forEach(label -> entries.get(label).fail("write", e));
+                failures.add(new StageFailure("write", e));
+                return new WriteBatch(this, labels, new ArrayList<>(), 0, null, true);
+            }
+        }
+
+        public void throwIfFailed()
+        {
+            StageFailure failure = failures.peek();
+            if(failure!=null)
+            {
+                throw new JPSRuntimeException("Ingestion failed in the " + failure.stage + " stage", failure.cause);
+            }
+        }
+
+        public int getPayloadsFetched()
+        {
+            return payloadsFetched.get();
+        }
+
+        public int getEmptyPayloads()
+        {
+            return emptyPayloads.get();
+        }
+
+        public int getItemsFetched()
+        {
+            return itemsFetched.get();
+        }
+
+        public int getSeriesWritten()
+        {
+            return seriesWritten.get();
+        }
+
+        public boolean hasFailures()
+        {
+            return !failures.isEmpty();
+        }
+
+        // One result per submitted entry, in submission order
+        public JSONArray getEntryResults()
+        {
+            JSONArray results = new JSONArray();
+            synchronized(entries)
+            {
+                for(EntryResult entry: entries.values())
+                {
+                    results.put(entry.toJSON());
+                }
+            }
+            return results;
+        }
+    }
+
+    // Work of one run queued on a stage, naming the entries a failure of that stage is reported against
+    private abstract static class Task
+    {
+        final Run run;
+        // Items of the payload the task holds, raw or converted; released once its stage has handled it
+        final int heldItems;
+
+        private Task(Run run, int heldItems)
+        {
+            this.run = run;
+            this.heldItems = heldItems;
+        }
+
+        abstract List<String> labels();
+    }
+
+    private static final class FetchTask extends Task
+    {
+        private final String label;
+        private final APIConnector connector;
+        private final Set<String> ownedMappings;
+
+        private FetchTask(Run run, String label, APIConnector connector, Set<String> ownedMappings)
+        {
+            super(run, 0);
+            this.label = label;
+            this.connector = connector;
+            this.ownedMappings = ownedMappings;
+        }
+
+        @Override
+        List<String> labels()
+        {
+            return Collections.singletonList(label);
+        }
+    }
+
+    private static final class ParseTask extends Task
+    {
+        private final String label;
+        private final String feed;
+        private final Set<String> ownedMappings;
+        // Set for the windows of a payload read in chunks
+        private final APIInputAgent.ChunkedWrite chunkedWrite;
+        private final boolean firstChunk;
+        private JSONObject readings;
+        private List<TimeSeries<OffsetDateTime>> timeSeries;
+
+        private ParseTask(Run run, String label, String feed, JSONObject readings, int items, Set<String> ownedMappings, APIInputAgent.ChunkedWrite chunkedWrite, boolean firstChunk)
+        {
+            super(run, items);
+            this.label = label;
+            this.feed = feed;
+            this.readings = readings;
+            this.ownedMappings = ownedMappings;
+            this.chunkedWrite = chunkedWrite;
+            this.firstChunk = firstChunk;
+        }
+
+        @Override
+        List<String> labels()
+        {
+            return Collections.singletonList(label);
+        }
+    }
+
+    private static final class WriteBatch extends Task
+    {
+        private final List<String> labels;
+        private final List<TimeSeries<OffsetDateTime>> timeSeries;
+        // Set for the chunks of a payload written in chunked mode
+        private final APIInputAgent.ChunkedWrite chunkedWrite;
+        private final boolean countSeries;
+
+        private WriteBatch(Run run, List<String> labels, List<TimeSeries<OffsetDateTime>> timeSeries, int items, APIInputAgent.ChunkedWrite chunkedWrite, boolean countSeries)
+        {
+            super(run, items);
+            this.labels = labels;
+            this.timeSeries = timeSeries;
+            this.chunkedWrite = chunkedWrite;
+            this.countSeries = countSeries;
+        }
+
+        @Override
+        List<String> labels()
+        {
+            return labels;
+        }
+    }
+
+    private static final class EntryResult
+    {
+        private final String label;
+        private volatile String status = "queued";
+        private volatile int items = 0;
+        private volatile String failedStage;
+        private volatile String error;
+
+        private EntryResult(String label)
+        {
+            this.label = label;
+        }
+
+        // An entry whose later chunk failed to parse keeps reporting the failure when its earlier chunks are written
+        private void written()
+        {
+            if(error==null)
+            {
+                status = "written";
+            }
+        }
+
+        private void fail(String stage, Throwable cause)
+        {
+            status = "failed";
+            failedStage = stage;
+            error = cause.getMessage()==null ? cause.toString() : cause.getMessage();
+        }
+
+        private JSONObject toJSON()
+        {
+            JSONObject result = new JSONObject();
+            result.put("entry", label);
+            result.put("status", status);
+            result.put("items", items);
+            if(error!=null)
+            {
+                result.put("stage", failedStage);
+                result.put("error", error);
+            }
+            return result;
+        }
+    }
+
+    @FunctionalInterface
+    private interface StageHandler<I>
+    {
+        void handle(I item) throws Exception;
+    }
+
+    private static final class StageFailure
+    {
+        private final String stage;
+        private final Throwable cause;
+
+        private StageFailure(String stage, Throwable cause)
+        {
+            this.stage = stage;
+            this.cause = cause;
+        }
+    }
+
+    private final class Stage<I extends Task>
+    {
+        private final String name;
+        private final BlockingQueue<Object> queue;
+        private final StageHandler<I> handler;
+        private final List<Thread> workers = new ArrayList<>();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicInteger processed = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger peakDepth = new AtomicInteger();
+        private long startNanos;
+        private long stopNanos;
+
+        private Stage(String name, int capacity, int parallelism, StageHandler<I> handler)
+        {
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.handler = handler;
+            for(int i=0;i<parallelism;i++)
+            {
+                Thread worker = new Thread(this::work, "weatherapi-" + name + "-" + i);
+                worker.setDaemon(true);
+                workers.add(worker);
+            }
+        }
+
+        private void start()
+        {
+            startNanos = System.nanoTime();
+            workers.forEach(Thread::start);
+        }
+
+        private void put(I item) throws InterruptedException
+        {
+            queue.put(item);
+            peakDepth.accumulateAndGet(queue.size(), Math::max);
+        }
+
+        // One poison pill per worker, queued behind the pending items, then wait for all of them to finish
+        private void drain() throws InterruptedException
+        {
+            for(int i=0;i<workers.size();i++)
+            {
+                queue.put(POISON);
+            }
+            for(Thread worker: workers)
+            {
+                worker.join();
+            }
+            stopNanos = System.nanoTime();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void work()
+        {
+            while(true)
+            {
+                Object item;
+                try
+                {
+                    item = queue.take();
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if(item==POISON)
+                {
+                    return;
+                }
+                I task = (I) item;
+                IngestionEvents.PipelineStage event = new IngestionEvents.PipelineStage();
+                event.stage = name;
+                event.queueDepth = queue.size();
+                event.begin();
+                long begin = System.nanoTime();
+                try
+                {
+                    handler.handle(task);
+                    processed.incrementAndGet();
+                }
+                catch(Throwable e)
+                {
+                    // Errors included: a worker that died here would leave its queue undrained, blocking every
+                    // put upstream and the drain for good. It records the failure and takes the next item instead.
+                    Log.error("The " + name + " stage of the ingestion pipeline failed", e);
+                    failed.incrementAndGet();
+                    task.run.failures.add(new StageFailure(name, e));
+                    task.labels().forEach(label -> task.run.entries.get(label).fail(name, e));
+                    event.failed = true;
+                }
+                finally
+                {
+                    busyNanos.addAndGet(System.nanoTime() - begin);
+                    event.commit();
+                    release(task.heldItems);
+                    task.run.handled();
+                }
+            }
+        }
+
+        private JSONObject getStatistics()
+        {
+            long end = stopNanos==0 ? System.nanoTime() : stopNanos;
+            long available = (end - startNanos) * workers.size();
+            double utilisation = (startNanos==0 || available<=0) ? 0.0 : Math.min(1.0, (double) busyNanos.get() / available);
+
+            JSONObject stats = new JSONObject();
+            stats.put("parallelism", workers.size());
+            // Pending poison pills are not work, so a drained stage reports an empty queue
+            stats.put("queueDepth", stopNanos==0 ? queue.size() : 0);
+            stats.put("peakQueueDepth", peakDepth.get());
+            stats.put("queueCapacity", queue.size() + queue.remainingCapacity());
+            stats.put("processed", processed.get());
+            stats.put("failed", failed.get());
+            stats.put("utilisation", utilisation);
+            return stats;
+        }
+    }
+}
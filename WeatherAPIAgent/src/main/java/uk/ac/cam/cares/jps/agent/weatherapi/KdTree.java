@@ -0,0 +1,118 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+
+// Immutable 3-d tree over points on the unit sphere. Coordinates are turned into unit vectors, so the straight-line
+// (chord) distance between them grows with the great-circle distance and the search needs no trigonometry, works
+// across the antimeridian and near the poles.
+public final class KdTree
+{
+    public static final double EARTH_RADIUS_KM = 6371.0088;
+
+    private final double[][] points;
+    // Point indices laid out as an implicit balanced tree: the median of every range is the node splitting it
+    private final int[] nodes;
+
+    public KdTree(List<double[]> latitudeLongitude)
+    {
+        points = new double[latitudeLongitude.size()][];
+        Integer[] order = new Integer[points.length];
+        for(int i=0;i<points.length;i++)
+        {
+            points[i] = toUnitVector(latitudeLongitude.get(i)[0], latitudeLongitude.get(i)[1]);
+            order[i] = i;
+        }
+        build(order, 0, order.length, 0);
+        nodes = Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    public int size()
+    {
+        return points.length;
+    }
+
+    // Index (in the constructor's list) of the point closest to the coordinates, or -1 if the tree is empty
+    public Nearest nearest(double latitude, double longitude)
+    {
+        Nearest best = new Nearest();
+        search(toUnitVector(latitude, longitude), 0, nodes.length, 0, best);
+        return best;
+    }
+
+    private void build(Integer[] order, int lo, int hi, int depth)
+    {
+        if(hi-lo<=1)
+        {
+            return;
+        }
+        int axis = depth % 3;
+        Arrays.sort(order, lo, hi, Comparator.comparingDouble(index -> points[index][axis]));
+        int mid = (lo + hi) >>> 1;
+        build(order, lo, mid, depth + 1);
+        build(order, mid + 1, hi, depth + 1);
+    }
+
+    private void search(double[] query, int lo, int hi, int depth, Nearest best)
+    {
+        if(lo>=hi)
+        {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        double[] point = points[nodes[mid]];
+        double distance = squaredDistance(query, point);
+        if(distance<best.squaredChord)
+        {
+            best.index = nodes[mid];
+            best.squaredChord = distance;
+        }
+        int axis = depth % 3;
+        double offset = query[axis] - point[axis];
+        // Closer half first; the other half can only hold a better point if the splitting plane is within reach
+        if(offset<0)
+        {
+            search(query, lo, mid, depth + 1, best);
+            if(offset*offset<best.squaredChord)
+             search(query, mid + 1, hi, depth + 1, best);
+        }
+        else
+        {
+            search(query, mid + 1, hi, depth + 1, best);
+            if(offset*offset<best.squaredChord)
+             search(query, lo, mid, depth + 1, best);
+        }
+    }
+
+    private static double squaredDistance(double[] a, double[] b)
+    {
+        double dx = a[0] - b[0];
+        double dy = a[1] - b[1];
+        double dz = a[2] - b[2];
+        return dx*dx + dy*dy + dz*dz;
+    }
+
+    private static double[] toUnitVector(double latitude, double longitude)
+    {
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        double cosLat = Math.cos(lat);
+        return new double[]{cosLat*Math.cos(lon), cosLat*Math.sin(lon), Math.sin(lat)};
+    }
+
+    public static final class Nearest
+    {
+        private int index = -1;
+        private double squaredChord = Double.POSITIVE_INFINITY;
+
+        public int getIndex()
+        {
+            return index;
+        }
+
+        public double getDistanceKm()
+        {
+            return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1.0, Math.sqrt(squaredChord) / 2));
+        }
+    }
+}
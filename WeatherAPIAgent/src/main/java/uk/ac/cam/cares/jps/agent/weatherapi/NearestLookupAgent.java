@@ -0,0 +1,61 @@
+import org.json.JSONObject;
+
+import uk.ac.cam.cares.jps.base.agent.JPSAgent;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.BadRequestException;
+
+// Answers "what is the forecast here" from memory: the region or station nearest to the coordinates, as indexed during
+// ingestion, together with its latest values, e.g. {"latitude":1.3521,"longitude":103.8198,"kind":"region"}.
+// kind is optional (region or station); without it the nearest place of either kind is returned.
+@WebServlet(urlPatterns = {"/nearest"})
+
+public class NearestLookupAgent extends JPSAgent
+{
+    public static final String Key_Latitude = "latitude";
+    public static final String Key_Longitude = "longitude";
+    public static final String Key_Kind = "kind";
+
+    public JSONObject processRequestParameters(JSONObject requestparams, HttpServletRequest request)
+    {
+        return processRequestParameters(requestparams);
+    }
+
+    public JSONObject processRequestParameters(JSONObject requestparams)
+    {
+        if(!validateInput(requestparams))
+        {
+            JSONObject jsonMessage = new JSONObject();
+            jsonMessage.put("Result","Request Parameters not defined correctly");
+            return jsonMessage;
+        }
+        String kind = requestparams.has(Key_Kind) ? requestparams.getString(Key_Kind) : null;
+        JSONObject nearest = SpatialIndex.getInstance().nearest(requestparams.getDouble(Key_Latitude), requestparams.getDouble(Key_Longitude), kind);
+        if(nearest==null)
+        {
+            JSONObject jsonMessage = new JSONObject();
+            jsonMessage.put("Result","No " + (kind==null ? "places" : kind + "s") + " have been ingested yet");
+            return jsonMessage;
+        }
+        return nearest;
+    }
+
+    public boolean validateInput(JSONObject requestparams) throws BadRequestException
+    {
+        if(!requestparams.has(Key_Latitude) || !requestparams.has(Key_Longitude))
+         return false;
+        // Query string values arrive as text, so numbers are read leniently
+        double latitude = requestparams.optDouble(Key_Latitude, Double.NaN);
+        double longitude = requestparams.optDouble(Key_Longitude, Double.NaN);
+        if(Double.isNaN(latitude) || Double.isNaN(longitude) || Math.abs(latitude)>90 || Math.abs(longitude)>180)
+         return false;
+        if(requestparams.has(Key_Kind))
+        {
+            String kind = requestparams.optString(Key_Kind);
+            if(!SpatialIndex.KIND_REGION.equals(kind) && !SpatialIndex.KIND_STATION.equals(kind))
+             return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,238 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
+import uk.ac.cam.cares.jps.base.timeseries.TimeSeries;
+import uk.ac.cam.cares.jps.base.timeseries.TimeSeriesClient;
+import uk.ac.cam.cares.jps.base.agent.JPSAgent;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.BadRequestException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Serves a time window of one stored series, downsampled on the server to a point budget, e.g.
+// {"agentProperties":"WeatherAPI_AGENTPROPERTIES","clientProperties":"WeatherAPI_CLIENTPROPERTIES","key":"temperaturehigh",
+//  "start":"2022-11-01T00:00:00Z","end":"2022-12-01T00:00:00Z","points":500,"method":"lttb"}
+@WebServlet(urlPatterns = {"/range"})
+
+public class RangeQueryAgent extends JPSAgent
+{
+    public static final String Key_AgentProp = APIAgentLauncher.Key_AgentProp;
+    public static final String Key_ClientProp = APIAgentLauncher.Key_ClientProp;
+    public static final String Key_JSONKey = "key";
+    public static final String Key_IRI = "iri";
+    public static final String Key_Start = "start";
+    public static final String Key_End = "end";
+    public static final String Key_Points = "points";
+    public static final String Key_Method = "method";
+
+    public static final int DEFAULT_POINTS = 500;
+    public static final int MAX_POINTS = 10000;
+
+    private static final Logger Log = LogManager.getLogger(APIAgentLauncher.class);
+
+    private static final String AGENT_ERROR_MSG = "The WeatherAPI input agent could not be constructed!";
+    private static final String TSCLIENT_ERROR_MSG = "Could not construct the time series client needed by the input agent!";
+    private static final String UNKNOWN_KEY_MSG = "No mapping contains the JSON key ";
+    private static final String QUERY_ERROR_MSG = "Could not retrieve the time series within the requested bounds!";
+
+    // Agents (and so mappings and time series clients) are reused across queries for the same properties files
+    private static final ConcurrentMap<String, APIInputAgent> agents = new ConcurrentHashMap<>();
+
+    public JSONObject processRequestParameters(JSONObject requestparams, HttpServletRequest request)
+    {
+        return processRequestParameters(requestparams);
+    }
+
+    public JSONObject processRequestParameters(JSONObject requestparams)
+    {
+        if(!validateInput(requestparams))
+        {
+            JSONObject jsonMessage = new JSONObject();
+            jsonMessage.put("Result","Request Parameters not defined correctly");
+            return jsonMessage;
+        }
+
+        String agentProperties = System.getenv(requestparams.getString(Key_AgentProp));
+        String clientProperties = System.getenv(requestparams.getString(Key_ClientProp));
+        APIInputAgent agent = getAgent(agentProperties, clientProperties);
+
+        String iri;
+        if(requestparams.has(Key_IRI))
+        {
+            iri = requestparams.getString(Key_IRI);
+        }
+        else
+        {
+            iri = agent.getIRI(requestparams.getString(Key_JSONKey));
+            if(iri==null)
+            {
+                throw new BadRequestException(UNKNOWN_KEY_MSG + requestparams.getString(Key_JSONKey));
+            }
+        }
+        OffsetDateTime start = OffsetDateTime.parse(requestparams.getString(Key_Start));
+        OffsetDateTime end = OffsetDateTime.parse(requestparams.getString(Key_End));
+        int points = requestparams.has(Key_Points) ? requestparams.getInt(Key_Points) : DEFAULT_POINTS;
+        String method = requestparams.has(Key_Method) ? requestparams.getString(Key_Method) : Downsampler.METHOD_LTTB;
+
+        RangeQueryCache cache = RangeQueryCache.getInstance();
+        RangeQueryCache.Key cacheKey = new RangeQueryCache.Key(iri, start.toString(), end.toString(), points, method);
+        JSONObject cached = cache.get(cacheKey);
+        if(cached!=null)
+        {
+            cached.put("cached", true);
+            return cached;
+        }
+
+        long generation = cache.getGeneration();
+        JSONObject result = query(agent.getTsClient(), iri, start, end, points, method);
+        cache.put(cacheKey, result, result.getJSONArray("times").length(), generation);
+        result.put("cached", false);
+        return result;
+    }
+
+    public boolean validateInput(JSONObject requestparams) throws BadRequestException
+    {
+        if(requestparams.isEmpty())
+         return false;
+        if(!requestparams.has(Key_AgentProp) || !requestparams.has(Key_ClientProp))
+         return false;
+        if(System.getenv(requestparams.getString(Key_AgentProp))==null || System.getenv(requestparams.getString(Key_ClientProp))==null)
+         return false;
+        if(!requestparams.has(Key_JSONKey) && !requestparams.has(Key_IRI))
+         return false;
+        if(!requestparams.has(Key_Start) || !requestparams.has(Key_End))
+         return false;
+        try
+        {
+            OffsetDateTime start = OffsetDateTime.parse(requestparams.getString(Key_Start));
+            OffsetDateTime end = OffsetDateTime.parse(requestparams.getString(Key_End));
+            if(end.isBefore(start))
+             return false;
+        }
+        catch(DateTimeParseException e)
+        {
+            return false;
+        }
+        if(requestparams.has(Key_Points))
+        {
+            int points = requestparams.optInt(Key_Points, -1);
+            if(points<2 || points>MAX_POINTS)
+             return false;
+        }
+        if(requestparams.has(Key_Method))
+        {
+            String method = requestparams.optString(Key_Method);
+            if(!Downsampler.METHOD_LTTB.equals(method) && !Downsampler.METHOD_MINMAX.equals(method))
+             return false;
+        }
+        return true;
+    }
+
+    private static APIInputAgent getAgent(String agentProperties, String clientProperties)
+    {
+        return agents.computeIfAbsent(agentProperties + " " + clientProperties, key ->
+        {
+            APIInputAgent agent;
+            try
+            {
+                agent = new APIInputAgent(agentProperties);
+                Properties prop = AgentProperties.load(agentProperties);
+                RangeQueryCache.getInstance().setMaxPoints(AgentProperties.readNonNegativeLong(prop, RangeQueryCache.Key_MaxPoints, RangeQueryCache.DEFAULT_MAX_POINTS));
+                RangeQueryCache.getInstance().setMaxAge(AgentProperties.readNonNegativeLong(prop, RangeQueryCache.Key_MaxAge, RangeQueryCache.DEFAULT_MAX_AGE));
+            }
+            catch(IOException e)
+            {
+                Log.error(AGENT_ERROR_MSG,e);
+                throw new JPSRuntimeException(AGENT_ERROR_MSG,e);
+            }
+            try
+            {
+                agent.setTsClient(new TimeSeriesClient<>(OffsetDateTime.class, clientProperties));
+            }
+            catch(IOException e)
+            {
+                Log.error(TSCLIENT_ERROR_MSG,e);
+                throw new JPSRuntimeException(TSCLIENT_ERROR_MSG,e);
+            }
+            return agent;
+        });
+    }
+
+    private static JSONObject query(TimeSeriesClient<OffsetDateTime> tsclient, String iri, OffsetDateTime start, OffsetDateTime end, int points, String method)
+    {
+        TimeSeries<OffsetDateTime> ts;
+        try
+        {
+            ts = tsclient.getTimeSeriesWithinBounds(Collections.singletonList(iri), start, end);
+        }
+        catch(Exception e)
+        {
+            Log.error(QUERY_ERROR_MSG,e);
+            throw new JPSRuntimeException(QUERY_ERROR_MSG,e);
+        }
+        List<OffsetDateTime> times = ts.getTimes();
+        List<?> values = ts.getValues(iri);
+
+        // Numeric series keep their shape through the chosen method; missing readings cannot be placed and are skipped
+        List<Integer> rows = new ArrayList<>();
+        boolean numeric = true;
+        for(int i=0;i<values.size();i++)
+        {
+            Object value = values.get(i);
+            if(value==null)
+             continue;
+            if(!(value instanceof Number))
+            {
+                numeric = false;
+                break;
+            }
+            if(!Double.isNaN(((Number) value).doubleValue()))
+             rows.add(i);
+        }
+
+        List<Integer> kept = new ArrayList<>();
+        if(numeric)
+        {
+            long[] x = new long[rows.size()];
+            double[] y = new double[rows.size()];
+            for(int i=0;i<rows.size();i++)
+            {
+                x[i] = times.get(rows.get(i)).toInstant().toEpochMilli();
+                y[i] = ((Number) values.get(rows.get(i))).doubleValue();
+            }
+            for(int index: Downsampler.downsample(method, x, y, points))
+             kept.add(rows.get(index));
+        }
+        else
+        {
+            kept = Downsampler.stride(times.size(), points);
+        }
+
+        JSONArray keptTimes = new JSONArray();
+        JSONArray keptValues = new JSONArray();
+        for(int index: kept)
+        {
+            keptTimes.put(times.get(index).toString());
+            keptValues.put(values.get(index)==null ? JSONObject.NULL : values.get(index));
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("iri", iri);
+        result.put("start", start.toString());
+        result.put("end", end.toString());
+        result.put("method", numeric ? method : "stride");
+        result.put("rawPoints", times.size());
+        result.put("times", keptTimes);
+        result.put("values", keptValues);
+        return result;
+    }
+}
@@ -0,0 +1,171 @@
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+
+// LRU cache of downsampled range query results, bounded by the total number of cached points rather than by entries
+// so one long window cannot push out many short ones unnoticed. Entries of a series are dropped whenever this instance
+// writes new data to it, see APIInputAgent.writeTimeSeries. Writes by other replicas are not seen here, so entries
+// also expire after a maximum age.
+public class RangeQueryCache
+{
+    public static final String Key_MaxPoints = "WeatherAPI.range.cachepoints";
+    public static final long DEFAULT_MAX_POINTS = 200000;
+    public static final String Key_MaxAge = "WeatherAPI.range.cachemaxage";
+    // Milliseconds; bounds how long a window written by another replica can be served stale, 0 disables caching
+    public static final long DEFAULT_MAX_AGE = 60000;
+
+    private static final RangeQueryCache INSTANCE = new RangeQueryCache(DEFAULT_MAX_POINTS, DEFAULT_MAX_AGE);
+
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxPoints;
+    private long maxAgeMillis;
+    private long cachedPoints = 0;
+    // Bumped on every invalidation, so a result read from the database before a write cannot be cached after it
+    private long generation = 0;
+
+    public RangeQueryCache(long maxPoints, long maxAgeMillis)
+    {
+        this.maxPoints = maxPoints;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public static RangeQueryCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    public synchronized void setMaxPoints(long maxPoints)
+    {
+        this.maxPoints = maxPoints;
+        evict();
+    }
+
+    public synchronized void setMaxAge(long maxAgeMillis)
+    {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    // Returns a copy so callers can amend their response without touching the cached one
+    public synchronized JSONObject get(Key key)
+    {
+        Entry entry = entries.get(key);
+        if(entry==null)
+        {
+            return null;
+        }
+        if(System.nanoTime() - entry.storedAt >= maxAgeMillis * 1_000_000L)
+        {
+            entries.remove(key);
+            cachedPoints -= entry.points;
+            return null;
+        }
+        return new JSONObject(entry.result.toString());
+    }
+
+    public synchronized long getGeneration()
+    {
+        return generation;
+    }
+
+    // generation is the value of getGeneration() taken before the result was read from the database
+    public synchronized void put(Key key, JSONObject result, int points, long generation)
+    {
+        if(points>maxPoints || maxAgeMillis<=0 || generation!=this.generation)
+        {
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(new JSONObject(result.toString()), points));
+        if(previous!=null)
+        {
+            cachedPoints -= previous.points;
+        }
+        cachedPoints += points;
+        evict();
+    }
+
+    public synchronized void invalidate(Iterable<String> iris)
+    {
+        generation++;
+        for(String iri: iris)
+        {
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while(it.hasNext())
+            {
+                Map.Entry<Key, Entry> entry = it.next();
+                if(entry.getKey().iri.equals(iri))
+                {
+                    cachedPoints -= entry.getValue().points;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    private void evict()
+    {
+        Iterator<Entry> it = entries.values().iterator();
+        while(cachedPoints>maxPoints && it.hasNext())
+        {
+            cachedPoints -= it.next().points;
+            it.remove();
+        }
+    }
+
+    private static final class Entry
+    {
+        private final JSONObject result;
+        private final int points;
+        private final long storedAt = System.nanoTime();
+
+        private Entry(JSONObject result, int points)
+        {
+            this.result = result;
+            this.points = points;
+        }
+    }
+
+    public static final class Key
+    {
+        private final String iri;
+        private final String start;
+        private final String end;
+        private final int budget;
+        private final String method;
+
+        public Key(String iri, String start, String end, int budget, String method)
+        {
+            this.iri = iri;
+            this.start = start;
+            this.end = end;
+            this.budget = budget;
+            this.method = method;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(this==o)
+             return true;
+            if(!(o instanceof Key))
+             return false;
+            Key other = (Key) o;
+            return budget==other.budget && iri.equals(other.iri) && start.equals(other.start) && end.equals(other.end) && method.equals(other.method);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(iri, start, end, budget, method);
+        }
+    }
+}
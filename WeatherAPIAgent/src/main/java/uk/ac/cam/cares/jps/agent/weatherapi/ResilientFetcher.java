@@ -0,0 +1,507 @@
+import org.json.JSONObject;
+import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+
+// Resilience layer around a fetch from the weather API:
+// - retries with capped exponential backoff and full jitter, waiting as long as the API asks for via Retry-After;
+// - a circuit breaker per upstream URL that fails fast while the upstream keeps failing and lets a single trial
+//   request through once the open time has passed;
+// - optionally, a hedged second request when the first has not answered within the recent p95 latency.
+// Breaker state, latencies and counters are kept per upstream and shared by all fetchers for it.
+public class ResilientFetcher
+{
+    private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
+
+    public static final String Key_MaxAttempts = "weather.retry.maxattempts";
+    public static final String Key_BaseDelay = "weather.retry.basedelay";
+    public static final String Key_MaxDelay = "weather.retry.maxdelay";
+    public static final String Key_MaxRetryAfter = "weather.retry.maxretryafter";
+    public static final String Key_FailureThreshold = "weather.breaker.failurethreshold";
+    public static final String Key_OpenTime = "weather.breaker.opentime";
+    public static final String Key_Hedging = "weather.hedge.enabled";
+    public static final String Key_MinHedgeDelay = "weather.hedge.mindelay";
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BASE_DELAY = 500;
+    public static final long DEFAULT_MAX_DELAY = 10000;
+    // Retry-After values beyond this are not waited for, the fetch fails instead
+    public static final long DEFAULT_MAX_RETRY_AFTER = 60000;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_TIME = 30000;
+    public static final long DEFAULT_MIN_HEDGE_DELAY = 200;
+    // Hedging only starts once the p95 is based on this many successful requests
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    private static final int LATENCY_WINDOW = 200;
+
+    private static final ConcurrentMap<String, Upstream> upstreams = new ConcurrentHashMap<>();
+    private static final ExecutorService hedgeExecutor = Executors.newCachedThreadPool(runnable ->
+    {
+        Thread thread = new Thread(runnable, "weatherapi-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Upstream upstream;
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final long maxRetryAfter;
+    private final boolean hedging;
+    private final long minHedgeDelay;
+
+    @FunctionalInterface
+    public interface FetchCall
+    {
+        JSONObject call(Cancellation cancellation) throws IOException;
+    }
+
+    // Handed to every call, which registers how to abort the request it sends. Used to stop the losing request of a
+    // hedged pair, so it does not hold on to a pooled connection until its response arrives.
+    public static final class Cancellation
+    {
+        private Runnable action;
+        private boolean cancelled = false;
+
+        public synchronized void onCancel(Runnable action)
+        {
+            if(cancelled)
+            {
+                action.run();
+            }
+            else
+            {
+                this.action = action;
+            }
+        }
+
+        private synchronized void cancel()
+        {
+            if(!cancelled)
+            {
+                cancelled = true;
+                if(action!=null)
+                {
+                    action.run();
+                }
+            }
+        }
+    }
+
+    public static class CircuitOpenException extends JPSRuntimeException
+    {
+        public CircuitOpenException(String message)
+        {
+            super(message);
+        }
+    }
+
+    public ResilientFetcher(String upstreamUrl, int maxAttempts, long baseDelay, long maxDelay, long maxRetryAfter,
+                            int failureThreshold, long openTime, boolean hedging, long minHedgeDelay)
+    {
+        this.upstream = upstreams.computeIfAbsent(upstreamUrl, Upstream::new);
+        this.upstream.configure(failureThreshold, openTime);
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.maxRetryAfter = maxRetryAfter;
+        this.hedging = hedging;
+        this.minHedgeDelay = minHedgeDelay;
+    }
+
+    // Reads the optional resilience keys of the API properties file
+    public static ResilientFetcher fromProperties(String upstreamUrl, Properties prop) throws IOException
+    {
+        return new ResilientFetcher(upstreamUrl,
+                AgentProperties.readPositiveInt(prop, Key_MaxAttempts, DEFAULT_MAX_ATTEMPTS),
+                AgentProperties.readNonNegativeLong(prop, Key_BaseDelay, DEFAULT_BASE_DELAY),
+                AgentProperties.readNonNegativeLong(prop, Key_MaxDelay, DEFAULT_MAX_DELAY),
+                AgentProperties.readNonNegativeLong(prop, Key_MaxRetryAfter, DEFAULT_MAX_RETRY_AFTER),
+                AgentProperties.readPositiveInt(prop, Key_FailureThreshold, DEFAULT_FAILURE_THRESHOLD),
+                AgentProperties.readNonNegativeLong(prop, Key_OpenTime, DEFAULT_OPEN_TIME),
+                Boolean.parseBoolean(prop.getProperty(Key_Hedging, "false").trim()),
+                AgentProperties.readNonNegativeLong(prop, Key_MinHedgeDelay, DEFAULT_MIN_HEDGE_DELAY));
+    }
+
+    public JSONObject fetch(FetchCall call) throws IOException
+    {
+        return fetch(call, false);
+    }
+
+    // For calls that hand the body on while it is still being read: never hedged, as two requests would hand on the
+    // same items twice, and not timed, as the time includes whatever the receiver does with the items
+    public JSONObject fetchStreamed(FetchCall call) throws IOException
+    {
+        return fetch(call, true);
+    }
+
+    private JSONObject fetch(FetchCall call, boolean streamed) throws IOException
+    {
+        for(int attempt=1;;attempt++)
+        {
+            Object permit = upstream.allowRequest();
+            if(permit==null)
+            {
+                upstream.shortCircuited.incrementAndGet();
+                throw new CircuitOpenException("The circuit breaker for " + upstream.url + " is open, the request was not sent");
+            }
+            try
+            {
+                JSONObject result = streamed ? call.call(new Cancellation()) : hedging ? callHedged(call) : timed(call);
+                upstream.onSuccess();
+                return result;
+            }
+            catch(IOException e)
+            {
+                boolean retryable = !(e instanceof UpstreamResponseException) || ((UpstreamResponseException) e).isRetryable();
+                if(retryable)
+                {
+                    upstream.onFailure();
+                }
+                else
+                {
+                    // The upstream answered, so it is not failing; the request itself is wrong
+                    upstream.onSuccess();
+                }
+                long delay = retryable ? backoff(attempt, e) : -1;
+                if(delay<0 || attempt>=maxAttempts)
+                {
+                    throw e;
+                }
+                upstream.retries.incrementAndGet();
+                LOG.warn(String.format("Attempt %d of %d to fetch from %s failed (%s), retrying in %d ms", attempt, maxAttempts, upstream.url, e.getMessage(), delay));
+                sleep(delay);
+            }
+            catch(RuntimeException e)
+            {
+                // e.g. a body that is not JSON: counted against the upstream, but not retried
+                upstream.onFailure();
+                throw e;
+            }
+            finally
+            {
+                // Errors are not counted either way, but must not keep the trial slot taken
+                upstream.release(permit);
+            }
+        }
+    }
+
+    // Retry-After wins over the computed backoff; returns -1 when the upstream asks for a longer wait than allowed
+    private long backoff(int attempt, IOException e)
+    {
+        if(e instanceof UpstreamResponseException)
+        {
+            long retryAfter = ((UpstreamResponseException) e).getRetryAfterMillis();
+            if(retryAfter>=0)
+            {
+                return retryAfter<=maxRetryAfter ? retryAfter : -1;
+            }
+        }
+        // Full jitter: uniformly random up to the capped exponential delay
+        long cap = Math.min(maxDelay, baseDelay * (1L << Math.min(attempt - 1, 30)));
+        return cap<=0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    private static void sleep(long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new JPSRuntimeException("Interrupted while waiting to retry the fetch", e);
+        }
+    }
+
+    private JSONObject timed(FetchCall call) throws IOException
+    {
+        return timed(call, new Cancellation());
+    }
+
+    private JSONObject timed(FetchCall call, Cancellation cancellation) throws IOException
+    {
+        long start = System.nanoTime();
+        JSONObject result = call.call(cancellation);
+        upstream.latencies.record((System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    // Sends a second request if the first is slower than the recent p95 and returns whichever succeeds first; the other
+    // one is then aborted
+    private JSONObject callHedged(FetchCall call) throws IOException
+    {
+        long p95 = upstream.latencies.percentile(0.95);
+        if(p95<0)
+        {
+            return timed(call);
+        }
+        long hedgeDelay = Math.max(minHedgeDelay, p95);
+
+        CompletableFuture<JSONObject> winner = new CompletableFuture<>();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger launched = new AtomicInteger(1);
+        AtomicBoolean hedgeWon = new AtomicBoolean();
+        Cancellation first = new Cancellation();
+        submit(call, first, winner, failed, launched, false, hedgeWon);
+        try
+        {
+            return winner.get(hedgeDelay, TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            upstream.hedges.incrementAndGet();
+            launched.incrementAndGet();
+            Cancellation hedge = new Cancellation();
+            submit(call, hedge, winner, failed, launched, true, hedgeWon);
+            try
+            {
+                JSONObject result = await(winner);
+                if(hedgeWon.get())
+                {
+                    upstream.hedgeWins.incrementAndGet();
+                }
+                return result;
+            }
+            finally
+            {
+                // The winner has finished already, so this only aborts the request still in flight
+                first.cancel();
+                hedge.cancel();
+            }
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            return rethrow(e);
+        }
+    }
+
+    private void submit(FetchCall call, Cancellation cancellation, CompletableFuture<JSONObject> winner, AtomicInteger failed, AtomicInteger launched, boolean hedge, AtomicBoolean hedgeWon)
+    {
+        hedgeExecutor.execute(() ->
+        {
+            try
+            {
+                JSONObject result = timed(call, cancellation);
+                // The winner is noted before the waiting caller is woken, so it reads the right one
+                synchronized(winner)
+                {
+                    if(!winner.isDone())
+                    {
+                        hedgeWon.set(hedge);
+                        winner.complete(result);
+                    }
+                }
+            }
+            catch(Throwable e)
+            {
+                // Only fail once every launched request has failed
+                if(failed.incrementAndGet()>=launched.get())
+                {
+                    synchronized(winner)
+                    {
+                        winner.completeExceptionally(e);
+                    }
+                }
+            }
+        });
+    }
+
+    private static JSONObject await(CompletableFuture<JSONObject> winner) throws IOException
+    {
+        try
+        {
+            return winner.get();
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            return rethrow(e);
+        }
+    }
+
+    private static JSONObject rethrow(Exception e) throws IOException
+    {
+        if(e instanceof InterruptedException)
+        {
+            Thread.currentThread().interrupt();
+            throw new JPSRuntimeException("Interrupted while waiting for the fetch", e);
+        }
+        Throwable cause = e.getCause();
+        if(cause instanceof IOException)
+        {
+            throw (IOException) cause;
+        }
+        if(cause instanceof RuntimeException)
+        {
+            throw (RuntimeException) cause;
+        }
+        if(cause instanceof Error)
+        {
+            throw (Error) cause;
+        }
+        throw new JPSRuntimeException("The fetch failed", cause);
+    }
+
+    public JSONObject getStatistics()
+    {
+        return upstream.getStatistics();
+    }
+
+    public static JSONObject getAllStatistics()
+    {
+        JSONObject stats = new JSONObject();
+        upstreams.forEach((url, upstream) -> stats.put(url, upstream.getStatistics()));
+        return stats;
+    }
+
+    private static final class Upstream
+    {
+        private enum State { CLOSED, OPEN, HALF_OPEN }
+
+        // Permit of requests sent while the breaker is closed
+        private static final Object REGULAR = new Object();
+
+        private final String url;
+        private final LatencyWindow latencies = new LatencyWindow(LATENCY_WINDOW);
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong shortCircuited = new AtomicLong();
+        private final AtomicLong hedges = new AtomicLong();
+        private final AtomicLong hedgeWins = new AtomicLong();
+
+        private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+        private long openTime = DEFAULT_OPEN_TIME;
+        private State state = State.CLOSED;
+        private int consecutiveFailures = 0;
+        private long openedAt;
+        private long timesOpened = 0;
+        // Permit of the trial request while half open, null when none is in flight
+        private Object trial = null;
+
+        private Upstream(String url)
+        {
+            this.url = url;
+        }
+
+        private synchronized void configure(int failureThreshold, long openTime)
+        {
+            this.failureThreshold = failureThreshold;
+            this.openTime = openTime;
+        }
+
+        // Returns the permit for one request, or null if the request must not be sent
+        private synchronized Object allowRequest()
+        {
+            if(state==State.OPEN && System.nanoTime() - openedAt >= openTime * 1_000_000L)
+            {
+                state = State.HALF_OPEN;
+                trial = null;
+                LOG.info("Circuit breaker for " + url + " is half open, sending a trial request");
+            }
+            if(state==State.OPEN)
+            {
+                return null;
+            }
+            if(state==State.HALF_OPEN)
+            {
+                if(trial!=null)
+                {
+                    return null;
+                }
+                trial = new Object();
+                return trial;
+            }
+            return REGULAR;
+        }
+
+        // Frees the trial slot if the request holding it ended without reporting success or failure
+        private synchronized void release(Object permit)
+        {
+            if(permit==trial)
+            {
+                trial = null;
+            }
+        }
+
+        private synchronized void onSuccess()
+        {
+            if(state!=State.CLOSED)
+            {
+                LOG.info("Circuit breaker for " + url + " is closed again");
+            }
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+            trial = null;
+        }
+
+        private synchronized void onFailure()
+        {
+            consecutiveFailures++;
+            if(state==State.HALF_OPEN || (state==State.CLOSED && consecutiveFailures>=failureThreshold))
+            {
+                state = State.OPEN;
+                openedAt = System.nanoTime();
+                timesOpened++;
+                trial = null;
+                LOG.warn(String.format("Circuit breaker for %s opened after %d consecutive failures", url, consecutiveFailures));
+            }
+        }
+
+        private synchronized JSONObject getStatistics()
+        {
+            JSONObject stats = new JSONObject();
+            stats.put("breakerState", state.name());
+            stats.put("consecutiveFailures", consecutiveFailures);
+            stats.put("timesOpened", timesOpened);
+            stats.put("shortCircuited", shortCircuited.get());
+            stats.put("retries", retries.get());
+            stats.put("hedges", hedges.get());
+            stats.put("hedgeWins", hedgeWins.get());
+            stats.put("p95LatencyMillis", latencies.percentile(0.95));
+            return stats;
+        }
+    }
+
+    // Latencies of the last successful requests in a ring buffer
+    private static final class LatencyWindow
+    {
+        private final long[] samples;
+        private int next = 0;
+        private int count = 0;
+
+        private LatencyWindow(int size)
+        {
+            samples = new long[size];
+        }
+
+        private synchronized void record(long millis)
+        {
+            samples[next] = millis;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        // -1 until enough samples have been recorded
+        private synchronized long percentile(double quantile)
+        {
+            if(count<MIN_LATENCY_SAMPLES)
+            {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(quantile * count) - 1;
+            return sorted[Math.max(0, index)];
+        }
+    }
+}
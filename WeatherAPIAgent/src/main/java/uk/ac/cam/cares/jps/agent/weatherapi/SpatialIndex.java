@@ -0,0 +1,320 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+
+// In-memory index of the regions and stations named in the payloads, with the latest values ingested for each.
+// Payloads carry their places as region_metadata / area_metadata (forecasts) or metadata.stations (station readings).
+// Whenever the places of a feed change, new trees are built aside and swapped in as a whole, so lookups never block
+// and never see a half-built index.
+public class SpatialIndex
+{
+    private static final Logger Log = LogManager.getLogger(APIAgentLauncher.class);
+
+    public static final String KIND_REGION = "region";
+    public static final String KIND_STATION = "station";
+
+    private static final SpatialIndex INSTANCE = new SpatialIndex();
+
+    // Places per feed, so a feed that stops listing a place removes it; guarded by this
+    private final Map<String, List<Place>> placesByFeed = new HashMap<>();
+    private volatile Snapshot snapshot = new Snapshot(new ArrayList<>(), new ArrayList<>());
+    // Latest reading per place (kind:id) and feed
+    private final ConcurrentMap<String, ConcurrentMap<String, Reading>> latest = new ConcurrentHashMap<>();
+
+    public static SpatialIndex getInstance()
+    {
+        return INSTANCE;
+    }
+
+    // Takes the places and the values of the most recent item of a payload; payloads without either are ignored
+    public void capture(String feed, JSONObject payload)
+    {
+        List<Place> places = new ArrayList<>();
+        readPlaces(payload.optJSONArray("region_metadata"), KIND_REGION, "name", "label_location", places);
+        readPlaces(payload.optJSONArray("area_metadata"), KIND_REGION, "name", "label_location", places);
+        JSONObject metadata = payload.optJSONObject("metadata");
+        if(metadata!=null)
+        {
+            readPlaces(metadata.optJSONArray("stations"), KIND_STATION, "id", "location", places);
+        }
+        if(!places.isEmpty())
+        {
+            updatePlaces(feed, places);
+        }
+        JSONArray items = payload.optJSONArray("items");
+        if(items!=null && items.length()>0)
+        {
+            captureValues(feed, latestItem(items), metadata);
+        }
+    }
+
+    // Nearest place of the kind (either kind if null) to the coordinates, with its latest values; null if nothing is indexed
+    public JSONObject nearest(double latitude, double longitude, String kind)
+    {
+        Snapshot current = snapshot;
+        Place best = null;
+        double distance = Double.POSITIVE_INFINITY;
+        for(Tree tree: current.trees)
+        {
+            if(kind!=null && !kind.equals(tree.kind))
+             continue;
+            KdTree.Nearest nearest = tree.tree.nearest(latitude, longitude);
+            if(nearest.getIndex()>=0 && nearest.getDistanceKm()<distance)
+            {
+                best = tree.places.get(nearest.getIndex());
+                distance = nearest.getDistanceKm();
+            }
+        }
+        if(best==null)
+        {
+            return null;
+        }
+
+        JSONObject values = new JSONObject();
+        Map<String, Reading> readings = latest.get(best.key());
+        if(readings!=null)
+        {
+            readings.forEach((feed, reading) -> values.put(feed, reading.value));
+        }
+        JSONObject result = new JSONObject();
+        result.put("kind", best.kind);
+        result.put("id", best.id);
+        result.put("name", best.name);
+        result.put("latitude", best.latitude);
+        result.put("longitude", best.longitude);
+        result.put("distanceKm", distance);
+        result.put("values", values);
+        return result;
+    }
+
+    private synchronized void updatePlaces(String feed, List<Place> places)
+    {
+        if(places.equals(placesByFeed.get(feed)))
+        {
+            return;
+        }
+        placesByFeed.put(feed, places);
+
+        // A place listed by several feeds is indexed once
+        Map<String, Place> merged = new LinkedHashMap<>();
+        placesByFeed.values().forEach(list -> list.forEach(place -> merged.putIfAbsent(place.key(), place)));
+        List<Place> regions = new ArrayList<>();
+        List<Place> stations = new ArrayList<>();
+        for(Place place: merged.values())
+        {
+            (KIND_STATION.equals(place.kind) ? stations : regions).add(place);
+        }
+        snapshot = new Snapshot(regions, stations);
+        Log.info(String.format("Rebuilt the spatial index for %s: %d regions, %d stations", feed, regions.size(), stations.size()));
+    }
+
+    private static void readPlaces(JSONArray entries, String kind, String idKey, String locationKey, List<Place> places)
+    {
+        if(entries==null)
+         return;
+        for(int i=0;i<entries.length();i++)
+        {
+            JSONObject entry = entries.optJSONObject(i);
+            if(entry==null)
+             continue;
+            JSONObject location = entry.optJSONObject(locationKey);
+            String id = entry.optString(idKey, null);
+            if(location==null || id==null)
+             continue;
+            double latitude = location.optDouble("latitude", Double.NaN);
+            double longitude = location.optDouble("longitude", Double.NaN);
+            if(Double.isNaN(latitude) || Double.isNaN(longitude) || Math.abs(latitude)>90 || Math.abs(longitude)>180)
+             continue;
+            places.add(new Place(kind, id, entry.optString("name", id), latitude, longitude));
+        }
+    }
+
+    // Backfilled payloads arrive in any order, so the item with the latest timestamp is the one kept
+    private static JSONObject latestItem(JSONArray items)
+    {
+        JSONObject latestItem = items.getJSONObject(0);
+        OffsetDateTime latestTime = parseTime(latestItem);
+        for(int i=1;i<items.length();i++)
+        {
+            JSONObject item = items.getJSONObject(i);
+            OffsetDateTime time = parseTime(item);
+            if(time!=null && (latestTime==null || time.isAfter(latestTime)))
+            {
+                latestItem = item;
+                latestTime = time;
+            }
+        }
+        return latestItem;
+    }
+
+    private void captureValues(String feed, JSONObject item, JSONObject metadata)
+    {
+        OffsetDateTime time = parseTime(item);
+        String timestamp = item.optString("timestamp", null);
+
+        // 24-hour forecast: the forecast of every period per region
+        JSONArray periods = item.optJSONArray("periods");
+        if(periods!=null)
+        {
+            Map<String, JSONArray> byRegion = new HashMap<>();
+            for(int i=0;i<periods.length();i++)
+            {
+                JSONObject period = periods.getJSONObject(i);
+                JSONObject regions = period.optJSONObject("regions");
+                JSONObject periodTime = period.optJSONObject("time");
+                if(regions==null)
+                 continue;
+                for(String region: regions.keySet())
+                {
+                    JSONObject forecast = new JSONObject();
+                    if(periodTime!=null)
+                    {
+                        forecast.put("start", periodTime.opt("start"));
+                        forecast.put("end", periodTime.opt("end"));
+                    }
+                    forecast.put("forecast", regions.get(region));
+                    byRegion.computeIfAbsent(region, key -> new JSONArray()).put(forecast);
+                }
+            }
+            byRegion.forEach((region, list) -> store(KIND_REGION, region, feed, time, new JSONObject().put("timestamp", timestamp).put("periods", list)));
+        }
+
+        // 2-hour forecast: one forecast per area
+        JSONArray forecasts = item.optJSONArray("forecasts");
+        if(forecasts!=null)
+        {
+            for(int i=0;i<forecasts.length();i++)
+            {
+                JSONObject forecast = forecasts.getJSONObject(i);
+                if(forecast.has("area"))
+                 store(KIND_REGION, forecast.getString("area"), feed, time, new JSONObject().put("timestamp", timestamp).put("forecast", forecast.opt("forecast")));
+            }
+        }
+
+        // Station feeds: one value per station in the unit named by the metadata
+        JSONArray readings = item.optJSONArray("readings");
+        if(readings!=null)
+        {
+            Object unit = metadata==null ? null : metadata.opt("reading_unit");
+            for(int i=0;i<readings.length();i++)
+            {
+                JSONObject reading = readings.optJSONObject(i);
+                if(reading==null || !reading.has("station_id"))
+                 continue;
+                JSONObject value = new JSONObject().put("timestamp", timestamp).put("value", reading.opt("value"));
+                if(unit!=null)
+                 value.put("unit", unit);
+                store(KIND_STATION, reading.getString("station_id"), feed, time, value);
+            }
+        }
+    }
+
+    // Keeps the newer of the stored and the given reading; readings without a parsable time always replace
+    private void store(String kind, String id, String feed, OffsetDateTime time, JSONObject value)
+    {
+        latest.computeIfAbsent(kind + ":" + id, key -> new ConcurrentHashMap<>())
+              .merge(feed, new Reading(time, value), (stored, fresh) -> stored.time!=null && fresh.time!=null && fresh.time.isBefore(stored.time) ? stored : fresh);
+    }
+
+    private static OffsetDateTime parseTime(JSONObject item)
+    {
+        String timestamp = item.optString("timestamp", null);
+        if(timestamp==null)
+         return null;
+        try
+        {
+            return OffsetDateTime.parse(timestamp);
+        }
+        catch(DateTimeParseException e)
+        {
+            return null;
+        }
+    }
+
+    private static final class Reading
+    {
+        private final OffsetDateTime time;
+        private final JSONObject value;
+
+        private Reading(OffsetDateTime time, JSONObject value)
+        {
+            this.time = time;
+            this.value = value;
+        }
+    }
+
+    private static final class Place
+    {
+        private final String kind;
+        private final String id;
+        private final String name;
+        private final double latitude;
+        private final double longitude;
+
+        private Place(String kind, String id, String name, double latitude, double longitude)
+        {
+            this.kind = kind;
+            this.id = id;
+            this.name = name;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        private String key()
+        {
+            return kind + ":" + id;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(this==o)
+             return true;
+            if(!(o instanceof Place))
+             return false;
+            Place other = (Place) o;
+            return kind.equals(other.kind) && id.equals(other.id) && name.equals(other.name) && latitude==other.latitude && longitude==other.longitude;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(kind, id, name, latitude, longitude);
+        }
+    }
+
+    private static final class Tree
+    {
+        private final String kind;
+        private final List<Place> places;
+        private final KdTree tree;
+
+        private Tree(String kind, List<Place> places)
+        {
+            this.kind = kind;
+            this.places = places;
+            List<double[]> coordinates = new ArrayList<>();
+            places.forEach(place -> coordinates.add(new double[]{place.latitude, place.longitude}));
+            this.tree = new KdTree(coordinates);
+        }
+    }
+
+    private static final class Snapshot
+    {
+        private final List<Tree> trees;
+
+        private Snapshot(List<Place> regions, List<Place> stations)
+        {
+            trees = Arrays.asList(new Tree(KIND_REGION, regions), new Tree(KIND_STATION, stations));
+        }
+    }
+}
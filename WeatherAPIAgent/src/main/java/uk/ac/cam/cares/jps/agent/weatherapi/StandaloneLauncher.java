@@ -0,0 +1,247 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import javax.ws.rs.BadRequestException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+
+// Runs the agent without a servlet container on the JDK's built-in HTTP server. At boot it preloads the agent for the
+// properties files named by the environment, warms up the parse path on a bundled sample payload and only then reports
+// ready on /ready. /retrieve, /range and /nearest accept the same JSON as the servlets, either as a POST body or as
+// ?query={...}.
+//
+// Started with --warmup-only it just runs the warm-up and exits, which the build uses to record the classes for the
+// class-data-sharing archive.
+public class StandaloneLauncher
+{
+    private static final Logger Log = LogManager.getLogger(APIAgentLauncher.class);
+
+    public static final String ENV_PORT = "WeatherAPI_PORT";
+    public static final String ENV_THREADS = "WeatherAPI_SERVER_THREADS";
+    public static final String ENV_WARMUP_ITERATIONS = "WeatherAPI_WARMUP_ITERATIONS";
+    // Names of the environment variables holding the properties files to preload, as used in the Dockerfile
+    public static final String ENV_AGENT_PROPERTIES = "WeatherAPI_AGENTPROPERTIES";
+    public static final String ENV_CLIENT_PROPERTIES = "WeatherAPI_CLIENTPROPERTIES";
+
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_WARMUP_ITERATIONS = 500;
+
+    private static final String WARMUP_PAYLOAD = "/warmup/24-hour-weather-forecast.json";
+    private static final String WARMUP_MAPPING = "/warmup/weather.properties";
+
+    private static volatile boolean ready = false;
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = readIntEnv(ENV_WARMUP_ITERATIONS, DEFAULT_WARMUP_ITERATIONS);
+        if(args.length>0 && args[0].equals("--warmup-only"))
+        {
+            warmUp(iterations);
+            return;
+        }
+
+        long boot = System.nanoTime();
+        HttpServer server = HttpServer.create(new InetSocketAddress(readIntEnv(ENV_PORT, DEFAULT_PORT)), 0);
+        ExecutorService executor = Executors.newFixedThreadPool(readIntEnv(ENV_THREADS, DEFAULT_THREADS));
+        server.setExecutor(executor);
+        APIAgentLauncher launcher = new APIAgentLauncher();
+        server.createContext("/retrieve", exchange -> handleRetrieve(launcher, exchange));
+        // Downsampled windows of stored series, with the same parameters as the servlet
+        RangeQueryAgent range = new RangeQueryAgent();
+        server.createContext("/range", exchange -> handleJson(exchange, "/range", range::processRequestParameters));
+        // Answered from the in-memory index, which fills as payloads are ingested
+        NearestLookupAgent nearest = new NearestLookupAgent();
+        server.createContext("/nearest", exchange -> handleJson(exchange, "/nearest", nearest::processRequestParameters));
+        server.createContext("/ready", exchange -> respond(exchange, ready ? 200 : 503, new JSONObject().put("ready", ready)));
+        server.createContext("/live", exchange -> respond(exchange, 200, new JSONObject().put("live", true)));
+        // Circuit breaker state, retries and hedging counters per upstream
+        server.createContext("/upstream", exchange -> respond(exchange, 200, ResilientFetcher.getAllStatistics()));
+        // Probes answer while the agent is still preloading, /retrieve is rejected until then
+        server.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+        {
+            ready = false;
+            server.stop(5);
+            executor.shutdown();
+            APIAgentLauncher.stopPipeline();
+            APIConnector.closeSharedClient();
+        }));
+
+        try
+        {
+            preload();
+            warmUp(iterations);
+        }
+        catch(Throwable e)
+        {
+            // The server threads are not daemons: left running they would keep an agent alive that never gets ready
+            Log.error("Standalone agent failed to start", e);
+            server.stop(0);
+            executor.shutdownNow();
+            System.exit(1);
+        }
+        ready = true;
+        Log.info(String.format("Standalone agent ready on port %d after %d ms", server.getAddress().getPort(), (System.nanoTime() - boot) / 1_000_000));
+    }
+
+    // Mappings, time series schema, the ingestion pipeline and the pooled HTTP client are set up before the first request arrives
+    private static void preload()
+    {
+        String agentProperties = System.getenv(ENV_AGENT_PROPERTIES);
+        String clientProperties = System.getenv(ENV_CLIENT_PROPERTIES);
+        APIAgentLauncher.startPipeline(agentProperties);
+        if(agentProperties!=null && clientProperties!=null)
+        {
+            APIAgentLauncher.preloadAgent(agentProperties, clientProperties);
+            Log.info("Preloaded the input agent for " + agentProperties);
+        }
+        else
+        {
+            Log.warn(ENV_AGENT_PROPERTIES + " or " + ENV_CLIENT_PROPERTIES + " is not set, the agent will be built on the first request");
+        }
+        APIConnector.getSharedClient();
+    }
+
+    // Parses the bundled sample repeatedly so the JIT compiles the parse path before real payloads arrive. The sample
+    // comes with its own mapping in a temporary folder, so the configured mappings are neither needed nor modified.
+    private static void warmUp(int iterations) throws IOException
+    {
+        if(iterations<=0)
+        {
+            return;
+        }
+        long start = System.nanoTime();
+        Path mappingFolder = Files.createTempDirectory("weatherapi-warmup");
+        Path mappingFile = mappingFolder.resolve("weather.properties");
+        try
+        {
+            try(InputStream mapping = StandaloneLauncher.class.getResourceAsStream(WARMUP_MAPPING))
+            {
+                Files.copy(mapping, mappingFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            String payload;
+            try(InputStream sample = StandaloneLauncher.class.getResourceAsStream(WARMUP_PAYLOAD))
+            {
+                payload = new String(sample.readAllBytes(), StandardCharsets.UTF_8);
+            }
+
+            APIInputAgent agent = APIInputAgent.fromMappingFolder(mappingFolder.toString());
+            int series = 0;
+            for(int i=0;i<iterations;i++)
+            {
+                series += agent.parseReadings(new JSONObject(payload)).size();
+            }
+            Log.info(String.format("Warm-up parsed the sample payload %d times (%d series) in %d ms", iterations, series, (System.nanoTime() - start) / 1_000_000));
+        }
+        finally
+        {
+            Files.deleteIfExists(mappingFile);
+            Files.deleteIfExists(mappingFolder);
+        }
+    }
+
+    private static void handleRetrieve(APIAgentLauncher launcher, HttpExchange exchange) throws IOException
+    {
+        if(!ready)
+        {
+            respond(exchange, 503, new JSONObject().put("Result", "Agent is still starting"));
+            return;
+        }
+        handleJson(exchange, "/retrieve", launcher::processRequestParameters);
+    }
+
+    private static void handleJson(HttpExchange exchange, String path, Function<JSONObject, JSONObject> handler) throws IOException
+    {
+        JSONObject requestparams;
+        try
+        {
+            requestparams = readRequest(exchange);
+        }
+        catch(JSONException e)
+        {
+            respond(exchange, 400, new JSONObject().put("Result", "Request is not valid JSON: " + e.getMessage()));
+            return;
+        }
+        try
+        {
+            respond(exchange, 200, handler.apply(requestparams));
+        }
+        catch(BadRequestException e)
+        {
+            respond(exchange, 400, new JSONObject().put("Result", e.getMessage()));
+        }
+        catch(RuntimeException e)
+        {
+            Log.error("Request to " + path + " failed", e);
+            respond(exchange, 500, new JSONObject().put("Result", e.getMessage()));
+        }
+    }
+
+    private static JSONObject readRequest(HttpExchange exchange) throws IOException
+    {
+        if("POST".equalsIgnoreCase(exchange.getRequestMethod()))
+        {
+            try(InputStream body = exchange.getRequestBody())
+            {
+                String content = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+                return content.trim().isEmpty() ? new JSONObject() : new JSONObject(content);
+            }
+        }
+        String query = exchange.getRequestURI().getRawQuery();
+        if(query!=null)
+        {
+            for(String parameter: query.split("&"))
+            {
+                if(parameter.startsWith("query="))
+                {
+                    return new JSONObject(URLDecoder.decode(parameter.substring("query=".length()), StandardCharsets.UTF_8.name()));
+                }
+            }
+        }
+        return new JSONObject();
+    }
+
+    private static void respond(HttpExchange exchange, int status, JSONObject body) throws IOException
+    {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(OutputStream output = exchange.getResponseBody())
+        {
+            output.write(bytes);
+        }
+    }
+
+    private static int readIntEnv(String name, int defaultValue)
+    {
+        String value = System.getenv(name);
+        if(value==null || value.trim().isEmpty())
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch(NumberFormatException e)
+        {
+            throw new IllegalArgumentException("The environment variable " + name + " must be an integer but was: " + value);
+        }
+    }
+}
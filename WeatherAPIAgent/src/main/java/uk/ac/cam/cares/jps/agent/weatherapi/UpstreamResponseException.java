@@ -0,0 +1,27 @@
+import org.apache.http.client.HttpResponseException;
+
+
+// Non-200 answer of the weather API, carrying the delay the API asked for in its Retry-After header (if any)
+public class UpstreamResponseException extends HttpResponseException
+{
+    private final long retryAfterMillis;
+
+    public UpstreamResponseException(int statusCode, String reason, long retryAfterMillis)
+    {
+        super(statusCode, reason);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    // Negative when the response had no (valid) Retry-After header
+    public long getRetryAfterMillis()
+    {
+        return retryAfterMillis;
+    }
+
+    // Server errors, throttling and timeouts are worth another attempt; other client errors will not change on retry
+    public boolean isRetryable()
+    {
+        int status = getStatusCode();
+        return status>=500 || status==429 || status==408;
+    }
+}
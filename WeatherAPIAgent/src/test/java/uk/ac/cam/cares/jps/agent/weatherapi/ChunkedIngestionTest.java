@@ -0,0 +1,232 @@
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cares.jps.base.timeseries.TimeSeries;
+import uk.ac.cam.cares.jps.base.timeseries.TimeSeriesClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+// Writing a payload in chunks through the pipeline must add exactly the rows updateData adds for the whole payload
+public class ChunkedIngestionTest
+{
+    private static final OffsetDateTime FIRST = OffsetDateTime.of(2022, 11, 29, 0, 0, 0, 0, ZoneOffset.UTC);
+    private static final DateTimeFormatter API_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    private static final int ITEMS = 7;
+    private static final int CHUNK_SIZE = 3;
+    private static final int QUEUE_CAPACITY = 2;
+
+    private Path mappingFolder;
+    private APIInputAgent agent;
+    private IngestionPipeline pipeline;
+
+    @Before
+    public void createAgent() throws IOException
+    {
+        mappingFolder = Files.createTempDirectory("weatherapi-chunks");
+        try(InputStream mapping = ChunkedIngestionTest.class.getResourceAsStream("/warmup/weather.properties"))
+        {
+            Files.copy(mapping, mappingFolder.resolve("weather.properties"));
+        }
+        agent = APIInputAgent.fromMappingFolder(mappingFolder.toString());
+    }
+
+    @After
+    public void deleteMappings() throws IOException
+    {
+        for(File file: mappingFolder.toFile().listFiles())
+        {
+            Files.delete(file.toPath());
+        }
+        Files.delete(mappingFolder);
+    }
+
+    private static OffsetDateTime time(int item)
+    {
+        return FIRST.plusHours(6L * item);
+    }
+
+    // Items shaped like the 24-hour forecast, with values that differ per item
+    private static String payload(int items, int invalidItem)
+    {
+        StringBuilder json = new StringBuilder("{\"items\":[");
+        for(int i=0;i<items;i++)
+        {
+            String start = i==invalidItem ? "not a time" : time(i).format(API_TIME);
+            json.append(i==0 ? "" : ",").append(String.format(
+                    "{\"update_timestamp\":\"%1$s\",\"timestamp\":\"%1$s\",\"valid_period\":{\"start\":\"%1$s\",\"end\":\"%2$s\"},"
+                    + "\"general\":{\"forecast\":\"Forecast %3$d\",\"relative_humidity\":{\"low\":%4$d,\"high\":%5$d},"
+                    + "\"temperature\":{\"low\":%6$d,\"high\":%7$d},\"wind\":{\"speed\":{\"low\":%3$d,\"high\":%4$d},\"direction\":\"NNE\"}}}",
+                    start, time(i + 1).format(API_TIME), i, 60 + i, 90 - i, 23 + i, 31 + i));
+        }
+        return json.append("]}").toString();
+    }
+
+    // Stands in for the database: remembers the rows added per IRI and answers getMaxTime from them and the watermark
+    @SuppressWarnings("unchecked")
+    private static TimeSeriesClient<OffsetDateTime> database(OffsetDateTime watermark, Map<String, List<String>> rows) throws Exception
+    {
+        TimeSeriesClient<OffsetDateTime> client = mock(TimeSeriesClient.class);
+        Map<String, OffsetDateTime> maxTimes = new HashMap<>();
+        when(client.getMaxTime(anyString())).thenAnswer(invocation -> maxTimes.getOrDefault(invocation.<String>getArgument(0), watermark));
+        doAnswer(invocation ->
+        {
+            TimeSeries<OffsetDateTime> ts = invocation.getArgument(0);
+            List<OffsetDateTime> times = ts.getTimes();
+            for(String iri: ts.getDataIRIs())
+            {
+                List<?> values = ts.getValues(iri);
+                for(int i=0;i<times.size();i++)
+                {
+                    rows.computeIfAbsent(iri, key -> new ArrayList<>()).add(times.get(i) + "=" + values.get(i));
+                }
+                OffsetDateTime last = times.get(times.size() - 1);
+                maxTimes.merge(iri, last, (stored, added) -> added.isAfter(stored) ? added : stored);
+            }
+            return null;
+        }).when(client).addTimeSeriesData(any(TimeSeries.class));
+        return client;
+    }
+
+    private Map<String, List<String>> writeWhole(String payload, OffsetDateTime watermark) throws Exception
+    {
+        Map<String, List<String>> rows = new TreeMap<>();
+        agent.setTsClient(database(watermark, rows));
+        agent.updateData(new JSONObject(payload));
+        return rows;
+    }
+
+    private IngestionPipeline.Run runChunked(String payload, TimeSeriesClient<OffsetDateTime> client)
+    {
+        agent.setTsClient(client);
+        APIConnector connector = mock(APIConnector.class);
+        // Streams the payload as the connector streams a response body
+        when(connector.streamWeatherReadings(anyInt(), any(APIConnector.ItemWindowConsumer.class))).thenAnswer(invocation ->
+                APIConnector.streamItems(new StringReader(payload), invocation.getArgument(0), invocation.getArgument(1)));
+        when(connector.getFeed()).thenReturn(APIConnector.DEFAULT_FEED);
+
+        pipeline = new IngestionPipeline(QUEUE_CAPACITY, 1, 1, 1);
+        pipeline.setChunkSize(CHUNK_SIZE);
+        pipeline.start();
+        try
+        {
+            IngestionPipeline.Run run = pipeline.newRun(agent, false);
+            run.submit("payload", connector);
+            run.await();
+            return run;
+        }
+        finally
+        {
+            pipeline.shutdown();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void assertSameRows(OffsetDateTime watermark, int expectedRows, int expectedInserts) throws Exception
+    {
+        String payload = payload(ITEMS, -1);
+        Map<String, List<String>> whole = writeWhole(payload, watermark);
+
+        Map<String, List<String>> chunked = new TreeMap<>();
+        TimeSeriesClient<OffsetDateTime> client = database(watermark, chunked);
+        IngestionPipeline.Run run = runChunked(payload, client);
+        run.throwIfFailed();
+
+        assertEquals(whole, chunked);
+        for(List<String> rows: chunked.values())
+        {
+            assertEquals(expectedRows, rows.size());
+        }
+        // The stored maximum time is read once per mapping, before the first chunk, and every chunk is added once
+        verify(client, times(1)).getMaxTime(anyString());
+        verify(client, times(expectedInserts)).addTimeSeriesData(any(TimeSeries.class));
+        assertEquals(1, run.getSeriesWritten());
+    }
+
+    @Test
+    public void tailChunkOfOneItem() throws Exception
+    {
+        // 7 items in chunks of 3: two full chunks and a last one holding a single item
+        assertSameRows(null, ITEMS, 3);
+    }
+
+    @Test
+    public void watermarkInTheMiddleOfAChunk() throws Exception
+    {
+        // Items 0 to 3 are stored already: the first chunk is pruned entirely and the second in part
+        assertSameRows(time(3), ITEMS - 4, 2);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void payloadEntirelyBelowTheWatermark() throws Exception
+    {
+        String payload = payload(ITEMS, -1);
+        assertTrue(writeWhole(payload, time(ITEMS)).isEmpty());
+
+        Map<String, List<String>> chunked = new TreeMap<>();
+        TimeSeriesClient<OffsetDateTime> client = database(time(ITEMS), chunked);
+        runChunked(payload, client).throwIfFailed();
+        assertTrue(chunked.isEmpty());
+        verify(client, never()).addTimeSeriesData(any(TimeSeries.class));
+    }
+
+    @Test
+    public void chunksBeforeAParseFailureStayWritten() throws Exception
+    {
+        // Unlike updateData, which writes nothing for this payload, the first chunk is written before the second fails
+        String payload = payload(ITEMS, CHUNK_SIZE + 1);
+        assertThrows(RuntimeException.class, () -> writeWhole(payload, null));
+
+        Map<String, List<String>> chunked = new TreeMap<>();
+        IngestionPipeline.Run run = runChunked(payload, database(null, chunked));
+        assertTrue(run.hasFailures());
+        assertFalse(chunked.isEmpty());
+        for(List<String> rows: chunked.values())
+        {
+            assertEquals(CHUNK_SIZE, rows.size());
+        }
+        JSONObject entry = run.getEntryResults().getJSONObject(0);
+        assertEquals("failed", entry.getString("status"));
+        assertEquals("parse", entry.getString("stage"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void itemsHeldStayBoundedByTheChunksInFlight() throws Exception
+    {
+        int items = 200;
+        String payload = payload(items, -1);
+        Map<String, List<String>> chunked = new TreeMap<>();
+        IngestionPipeline.Run run = runChunked(payload, database(null, chunked));
+        run.throwIfFailed();
+        assertEquals(items, run.getItemsFetched());
+        assertEquals(writeWhole(payload, null), chunked);
+
+        // At most a chunk per slot of the parse and write queues, per parse and write worker and per put blocked on
+        // either queue; the whole payload is never held
+        int peak = pipeline.getStatistics().getInt("peakItemsHeld");
+        assertTrue(peak>0);
+        assertTrue("peak " + peak, peak<=CHUNK_SIZE * (2 * QUEUE_CAPACITY + 4));
+        assertEquals(0, pipeline.getStatistics().getInt("itemsHeld"));
+    }
+
+    @Test
+    public void streamedPayloadWithoutItemsFailsLikeAWholeOne()
+    {
+        assertTrue(APIConnector.streamItems(new StringReader("{}"), CHUNK_SIZE, (header, window) -> fail()).isEmpty());
+        assertThrows(RuntimeException.class, () -> APIConnector.streamItems(new StringReader("{\"api_info\":{}}"), CHUNK_SIZE, (header, window) -> fail()));
+    }
+}
@@ -0,0 +1,169 @@
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ClusterCoordinatorTest
+{
+    // 14 or later, for the idle_session_timeout that ends the sessions of stalled replicas
+    @ClassRule
+    public static PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:14");
+
+    private static final String OTHER_DATABASE = "other";
+    private static final List<String> UNITS = new ArrayList<>();
+
+    // Every test uses its own lock namespace, so leases of earlier tests cannot interfere
+    private static int namespace = 1000;
+
+    private final List<ClusterCoordinator> coordinators = new ArrayList<>();
+
+    @BeforeClass
+    public static void createOtherDatabase() throws SQLException
+    {
+        try(Connection connection = DriverManager.getConnection(postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword());
+            Statement statement = connection.createStatement())
+        {
+            statement.execute("CREATE DATABASE " + OTHER_DATABASE);
+        }
+        for(int i=0;i<6;i++)
+        {
+            UNITS.add("24-hour-weather-forecast|mapping" + i);
+        }
+    }
+
+    @After
+    public void closeCoordinators()
+    {
+        coordinators.forEach(ClusterCoordinator::close);
+    }
+
+    private ClusterCoordinator join(String url)
+    {
+        // A long interval, so only the explicit rebalance() calls of the test run
+        return join(url, 3600000);
+    }
+
+    private ClusterCoordinator join(String url, long rebalanceInterval)
+    {
+        ClusterCoordinator coordinator = new ClusterCoordinator(url, postgres.getUsername(), postgres.getPassword(), namespace, 4, rebalanceInterval);
+        coordinator.start();
+        coordinators.add(coordinator);
+        return coordinator;
+    }
+
+    private static String otherDatabaseUrl()
+    {
+        return "jdbc:postgresql://" + postgres.getHost() + ":" + postgres.getMappedPort(PostgreSQLContainer.POSTGRESQL_PORT) + "/" + OTHER_DATABASE;
+    }
+
+    @Test
+    public void replicasSplitTheUnitsWithoutOverlap()
+    {
+        namespace += 2;
+        ClusterCoordinator first = join(postgres.getJdbcUrl());
+        ClusterCoordinator second = join(postgres.getJdbcUrl());
+        first.rebalance();
+        second.rebalance();
+        assertEquals(2, first.getStatistics().getInt("liveReplicas"));
+
+        for(String unit: UNITS)
+        {
+            boolean ownedByFirst = first.owns(unit);
+            boolean ownedBySecond = second.owns(unit);
+            assertTrue(unit, ownedByFirst ^ ownedBySecond);
+        }
+        assertEquals(3, first.getStatistics().getJSONArray("leases").length());
+        assertEquals(3, second.getStatistics().getJSONArray("leases").length());
+    }
+
+    @Test
+    public void survivorTakesOverTheUnitsOfAClosedReplica()
+    {
+        namespace += 2;
+        ClusterCoordinator first = join(postgres.getJdbcUrl());
+        ClusterCoordinator survivor = join(postgres.getJdbcUrl());
+        first.rebalance();
+        survivor.rebalance();
+        List<String> ofFirst = new ArrayList<>();
+        for(String unit: UNITS)
+        {
+            if(first.owns(unit))
+             ofFirst.add(unit);
+            survivor.owns(unit);
+        }
+        assertFalse(ofFirst.isEmpty());
+        for(String unit: ofFirst)
+        {
+            assertFalse(survivor.owns(unit));
+        }
+
+        // Closing the connection releases the leases; the next rebalance sees a single replica
+        first.close();
+        survivor.rebalance();
+        assertEquals(1, survivor.getStatistics().getInt("liveReplicas"));
+        for(String unit: UNITS)
+        {
+            assertTrue(unit, survivor.owns(unit));
+        }
+    }
+
+    @Test
+    public void replicasOfAnotherDatabaseAreNotCounted()
+    {
+        namespace += 2;
+        ClusterCoordinator first = join(postgres.getJdbcUrl());
+        ClusterCoordinator second = join(postgres.getJdbcUrl());
+        ClusterCoordinator elsewhere = join(otherDatabaseUrl());
+        first.rebalance();
+        elsewhere.rebalance();
+
+        assertEquals(2, first.getStatistics().getInt("liveReplicas"));
+        assertEquals(1, elsewhere.getStatistics().getInt("liveReplicas"));
+        // Advisory locks are per database, so the replica elsewhere takes every unit it sees
+        for(String unit: UNITS)
+        {
+            assertTrue(unit, elsewhere.owns(unit));
+        }
+        assertEquals(1, second.getStatistics().getInt("slot"));
+        assertEquals(0, elsewhere.getStatistics().getInt("slot"));
+    }
+
+    @Test
+    public void stalledReplicaLosesItsLeasesToTheSurvivor() throws InterruptedException
+    {
+        namespace += 2;
+        ClusterCoordinator survivor = join(postgres.getJdbcUrl());
+        ClusterCoordinator stalled = join(postgres.getJdbcUrl(), 300);
+        survivor.rebalance();
+        stalled.rebalance();
+        for(String unit: UNITS)
+        {
+            stalled.owns(unit);
+            survivor.owns(unit);
+        }
+        assertEquals(3, stalled.getStatistics().getJSONArray("leases").length());
+
+        // Holding its monitor stops the stalled replica's heartbeat while its connection stays open; after three
+        // missed intervals the server ends the idle session, which releases its slot and leases
+        synchronized(stalled)
+        {
+            Thread.sleep(2000);
+            survivor.rebalance();
+            assertEquals(1, survivor.getStatistics().getInt("liveReplicas"));
+            for(String unit: UNITS)
+            {
+                assertTrue(unit, survivor.owns(unit));
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DownsamplerTest
+{
+    private static long[] times(int n)
+    {
+        long[] x = new long[n];
+        for(int i=0;i<n;i++)
+        {
+            x[i] = i * 60000L;
+        }
+        return x;
+    }
+
+    private static double[] sine(int n)
+    {
+        double[] y = new double[n];
+        for(int i=0;i<n;i++)
+        {
+            y[i] = Math.sin(i / 10.0);
+        }
+        return y;
+    }
+
+    private static void assertAscendingWithEnds(List<Integer> kept, int n)
+    {
+        assertEquals(Integer.valueOf(0), kept.get(0));
+        assertEquals(Integer.valueOf(n-1), kept.get(kept.size()-1));
+        for(int i=1;i<kept.size();i++)
+        {
+            assertTrue("indices must be strictly ascending: " + kept, kept.get(i)>kept.get(i-1));
+        }
+    }
+
+    @Test
+    public void emptySeriesKeepsNothing()
+    {
+        assertTrue(Downsampler.largestTriangleThreeBuckets(new long[0], new double[0], 500).isEmpty());
+        assertTrue(Downsampler.minMax(new long[0], new double[0], 500).isEmpty());
+        assertTrue(Downsampler.stride(0, 500).isEmpty());
+        assertTrue(Downsampler.largestTriangleThreeBuckets(new long[0], new double[0], 2).isEmpty());
+    }
+
+    @Test
+    public void seriesWithinBudgetIsKeptWhole()
+    {
+        List<Integer> expected = Arrays.asList(0, 1, 2, 3, 4);
+        assertEquals(expected, Downsampler.largestTriangleThreeBuckets(times(5), sine(5), 5));
+        assertEquals(expected, Downsampler.minMax(times(5), sine(5), 10));
+        assertEquals(expected, Downsampler.stride(5, 5));
+    }
+
+    @Test
+    public void singlePointIsKept()
+    {
+        assertEquals(Arrays.asList(0), Downsampler.largestTriangleThreeBuckets(times(1), sine(1), 2));
+        assertEquals(Arrays.asList(0), Downsampler.minMax(times(1), sine(1), 3));
+        assertEquals(Arrays.asList(0), Downsampler.stride(1, 1));
+    }
+
+    @Test
+    public void budgetTooSmallForBucketsKeepsFirstAndLast()
+    {
+        assertEquals(Arrays.asList(0, 99), Downsampler.largestTriangleThreeBuckets(times(100), sine(100), 2));
+        assertEquals(Arrays.asList(0, 99), Downsampler.largestTriangleThreeBuckets(times(100), sine(100), 0));
+        assertEquals(Arrays.asList(0, 99), Downsampler.minMax(times(100), sine(100), 3));
+        assertEquals(Arrays.asList(0, 99), Downsampler.stride(100, 1));
+    }
+
+    @Test
+    public void lttbKeepsExactlyTheBudget()
+    {
+        for(int budget: new int[]{3, 4, 7, 50, 999})
+        {
+            List<Integer> kept = Downsampler.largestTriangleThreeBuckets(times(1000), sine(1000), budget);
+            assertEquals(budget, kept.size());
+            assertAscendingWithEnds(kept, 1000);
+        }
+    }
+
+    @Test
+    public void lttbKeepsASpike()
+    {
+        double[] y = new double[1000];
+        y[537] = 100;
+        List<Integer> kept = Downsampler.largestTriangleThreeBuckets(times(1000), y, 20);
+        assertTrue(kept.contains(537));
+    }
+
+    @Test
+    public void minMaxStaysWithinBudgetAndKeepsExtremes()
+    {
+        double[] y = sine(1000);
+        y[400] = -50;
+        y[401] = 50;
+        for(int budget: new int[]{4, 5, 10, 101})
+        {
+            List<Integer> kept = Downsampler.minMax(times(1000), y, budget);
+            assertTrue("kept " + kept.size() + " for budget " + budget, kept.size()<=budget);
+            assertAscendingWithEnds(kept, 1000);
+            assertTrue(kept.contains(400));
+            assertTrue(kept.contains(401));
+        }
+    }
+
+    @Test
+    public void strideIsEvenlySpaced()
+    {
+        assertEquals(Arrays.asList(0, 3, 6, 9), Downsampler.stride(10, 4));
+        List<Integer> kept = Downsampler.stride(1000, 7);
+        assertEquals(7, kept.size());
+        assertAscendingWithEnds(kept, 1000);
+    }
+
+    @Test
+    public void downsampleDispatchesOnMethod()
+    {
+        long[] x = times(200);
+        double[] y = sine(200);
+        assertEquals(Downsampler.minMax(x, y, 20), Downsampler.downsample(Downsampler.METHOD_MINMAX, x, y, 20));
+        assertEquals(Downsampler.largestTriangleThreeBuckets(x, y, 20), Downsampler.downsample(Downsampler.METHOD_LTTB, x, y, 20));
+        assertEquals(Downsampler.largestTriangleThreeBuckets(x, y, 20), Downsampler.downsample("unknown", x, y, 20));
+    }
+}
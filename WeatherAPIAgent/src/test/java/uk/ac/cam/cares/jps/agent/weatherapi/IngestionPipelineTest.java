@@ -0,0 +1,123 @@
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cares.jps.base.timeseries.TimeSeries;
+import uk.ac.cam.cares.jps.base.timeseries.TimeSeriesClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+// Requests share one pipeline: each run must see only its own entries, finish on its own and survive failures of others
+public class IngestionPipelineTest
+{
+    private Path mappingFolder;
+    private APIInputAgent agent;
+    private String payload;
+    private IngestionPipeline pipeline;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void startPipeline() throws IOException
+    {
+        mappingFolder = Files.createTempDirectory("weatherapi-pipeline");
+        try(InputStream mapping = IngestionPipelineTest.class.getResourceAsStream("/warmup/weather.properties"))
+        {
+            Files.copy(mapping, mappingFolder.resolve("weather.properties"));
+        }
+        try(InputStream sample = IngestionPipelineTest.class.getResourceAsStream("/warmup/24-hour-weather-forecast.json"))
+        {
+            payload = new String(sample.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        agent = APIInputAgent.fromMappingFolder(mappingFolder.toString());
+        agent.setTsClient(mock(TimeSeriesClient.class));
+
+        pipeline = new IngestionPipeline(2, 2, 1, 1);
+        pipeline.start();
+    }
+
+    @After
+    public void stopPipeline() throws IOException
+    {
+        pipeline.shutdown();
+        for(File file: mappingFolder.toFile().listFiles())
+        {
+            Files.delete(file.toPath());
+        }
+        Files.delete(mappingFolder);
+    }
+
+    private static APIConnector connector(CountDownLatch release, JSONObject readings)
+    {
+        APIConnector connector = mock(APIConnector.class);
+        when(connector.getFeed()).thenReturn(APIConnector.DEFAULT_FEED);
+        when(connector.getWeatherReadings()).thenAnswer(invocation ->
+        {
+            release.await();
+            return readings;
+        });
+        return connector;
+    }
+
+    private static String status(IngestionPipeline.Run run)
+    {
+        return run.getEntryResults().getJSONObject(0).getString("status");
+    }
+
+    @Test(timeout = 10000)
+    public void runsOverlapAndFinishIndependently()
+    {
+        CountDownLatch release = new CountDownLatch(1);
+        IngestionPipeline.Run slow = pipeline.newRun(agent, false);
+        IngestionPipeline.Run fast = pipeline.newRun(agent, false);
+        slow.submit("slow", connector(release, new JSONObject(payload)));
+        fast.submit("fast", connector(new CountDownLatch(0), new JSONObject(payload)));
+
+        // The second request is written while the fetch of the first one is still held up
+        fast.await();
+        assertEquals("written", status(fast));
+        assertEquals(1, fast.getEntryResults().length());
+        assertEquals("queued", status(slow));
+
+        release.countDown();
+        slow.await();
+        assertEquals("written", status(slow));
+        assertEquals(1, slow.getEntryResults().length());
+        assertEquals(2, pipeline.getStatistics().getJSONObject("write").getInt("processed"));
+    }
+
+    @Test(timeout = 10000)
+    @SuppressWarnings("unchecked")
+    public void errorFailsTheEntryAndTheWorkerCarriesOn()
+    {
+        APIConnector broken = mock(APIConnector.class);
+        when(broken.getWeatherReadings()).thenAnswer(invocation ->
+        {
+            throw new OutOfMemoryError("simulated");
+        });
+        IngestionPipeline.Run failed = pipeline.newRun(agent, false);
+        failed.submit("broken", broken);
+        failed.await();
+        assertTrue(failed.hasFailures());
+        JSONObject entry = failed.getEntryResults().getJSONObject(0);
+        assertEquals("failed", entry.getString("status"));
+        assertEquals("fetch", entry.getString("stage"));
+
+        // Both fetch workers are still taking work
+        IngestionPipeline.Run next = pipeline.newRun(agent, false);
+        next.submit("first", connector(new CountDownLatch(0), new JSONObject(payload)));
+        next.submit("second", connector(new CountDownLatch(0), new JSONObject(payload)));
+        next.await();
+        assertFalse(next.hasFailures());
+        verify(agent.getTsClient(), atLeastOnce()).addTimeSeriesData(any(TimeSeries.class));
+    }
+}
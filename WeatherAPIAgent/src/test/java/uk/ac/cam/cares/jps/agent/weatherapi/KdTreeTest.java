@@ -0,0 +1,110 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KdTreeTest
+{
+    private static double haversineKm(double lat1, double lon1, double lat2, double lon2)
+    {
+        double p1 = Math.toRadians(lat1);
+        double p2 = Math.toRadians(lat2);
+        double dp = p2 - p1;
+        double dl = Math.toRadians(lon2 - lon1);
+        double h = Math.sin(dp/2)*Math.sin(dp/2) + Math.cos(p1)*Math.cos(p2)*Math.sin(dl/2)*Math.sin(dl/2);
+        return 2 * KdTree.EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    @Test
+    public void emptyTreeFindsNothing()
+    {
+        KdTree.Nearest nearest = new KdTree(Collections.emptyList()).nearest(1.35, 103.8);
+        assertEquals(-1, nearest.getIndex());
+    }
+
+    @Test
+    public void singlePointIsAlwaysNearest()
+    {
+        KdTree tree = new KdTree(Collections.singletonList(new double[]{1.35735, 103.82}));
+        KdTree.Nearest nearest = tree.nearest(-45, -70);
+        assertEquals(0, nearest.getIndex());
+        assertEquals(haversineKm(-45, -70, 1.35735, 103.82), nearest.getDistanceKm(), 1e-6);
+    }
+
+    @Test
+    public void exactMatchHasZeroDistance()
+    {
+        KdTree tree = new KdTree(Arrays.asList(new double[]{1.35735, 103.7}, new double[]{1.35735, 103.94}, new double[]{1.29587, 103.82}));
+        KdTree.Nearest nearest = tree.nearest(1.35735, 103.94);
+        assertEquals(1, nearest.getIndex());
+        assertEquals(0.0, nearest.getDistanceKm(), 1e-9);
+    }
+
+    @Test
+    public void findsPointsAcrossTheAntimeridian()
+    {
+        // 179.9 and -179.9 are 0.2 degrees apart, 10 degrees of longitude the other way are much further
+        KdTree tree = new KdTree(Arrays.asList(new double[]{0, 170}, new double[]{0, -179.9}));
+        KdTree.Nearest nearest = tree.nearest(0, 179.9);
+        assertEquals(1, nearest.getIndex());
+        assertEquals(haversineKm(0, 179.9, 0, -179.9), nearest.getDistanceKm(), 1e-6);
+        assertTrue(nearest.getDistanceKm()<25);
+    }
+
+    @Test
+    public void handlesThePoles()
+    {
+        // Every longitude meets at the pole, so the point at 89.9 degrees is closest regardless of its longitude
+        KdTree tree = new KdTree(Arrays.asList(new double[]{89.9, -120}, new double[]{80, 60}));
+        assertEquals(0, tree.nearest(90, 60).getIndex());
+    }
+
+    @Test
+    public void duplicatePointsAreSupported()
+    {
+        List<double[]> points = new ArrayList<>();
+        for(int i=0;i<10;i++)
+        {
+            points.add(new double[]{1.3, 103.8});
+        }
+        KdTree.Nearest nearest = new KdTree(points).nearest(1.3, 103.8);
+        assertTrue(nearest.getIndex()>=0 && nearest.getIndex()<10);
+        assertEquals(0.0, nearest.getDistanceKm(), 1e-9);
+    }
+
+    @Test
+    public void agreesWithBruteForce()
+    {
+        Random random = new Random(42);
+        for(int round=0;round<50;round++)
+        {
+            int n = 1 + random.nextInt(500);
+            List<double[]> points = new ArrayList<>();
+            for(int i=0;i<n;i++)
+            {
+                points.add(new double[]{random.nextDouble()*180 - 90, random.nextDouble()*360 - 180});
+            }
+            KdTree tree = new KdTree(points);
+            assertEquals(n, tree.size());
+            for(int query=0;query<50;query++)
+            {
+                double lat = random.nextDouble()*180 - 90;
+                double lon = random.nextDouble()*360 - 180;
+                double best = Double.POSITIVE_INFINITY;
+                for(double[] point: points)
+                {
+                    best = Math.min(best, haversineKm(lat, lon, point[0], point[1]));
+                }
+                KdTree.Nearest nearest = tree.nearest(lat, lon);
+                double[] found = points.get(nearest.getIndex());
+                assertEquals(best, haversineKm(lat, lon, found[0], found[1]), 1e-6);
+                assertEquals(best, nearest.getDistanceKm(), 1e-3);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class RangeQueryCacheTest
+{
+    private static final RangeQueryCache.Key KEY = new RangeQueryCache.Key("iri", "2022-11-01T00:00Z", "2022-12-01T00:00Z", 500, Downsampler.METHOD_LTTB);
+
+    private static JSONObject result()
+    {
+        return new JSONObject().put("iri", "iri").put("times", new JSONArray().put("2022-11-01T00:00Z"));
+    }
+
+    @Test
+    public void returnsACopyOfTheCachedResult()
+    {
+        RangeQueryCache cache = new RangeQueryCache(100, 60000);
+        cache.put(KEY, result(), 1, cache.getGeneration());
+        JSONObject first = cache.get(KEY);
+        first.put("cached", true);
+        assertFalse(cache.get(KEY).has("cached"));
+    }
+
+    @Test
+    public void entriesExpireAfterTheMaxAge() throws InterruptedException
+    {
+        RangeQueryCache cache = new RangeQueryCache(100, 50);
+        cache.put(KEY, result(), 1, cache.getGeneration());
+        assertNotNull(cache.get(KEY));
+        Thread.sleep(80);
+        assertNull(cache.get(KEY));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void zeroMaxAgeDisablesCaching()
+    {
+        RangeQueryCache cache = new RangeQueryCache(100, 0);
+        cache.put(KEY, result(), 1, cache.getGeneration());
+        assertNull(cache.get(KEY));
+    }
+
+    @Test
+    public void writesInvalidateAndStaleReadsAreNotCached()
+    {
+        RangeQueryCache cache = new RangeQueryCache(100, 60000);
+        cache.put(KEY, result(), 1, cache.getGeneration());
+        long generation = cache.getGeneration();
+        cache.invalidate(Collections.singletonList("iri"));
+        assertNull(cache.get(KEY));
+        // Read before the write above, so it must not be cached after it
+        cache.put(KEY, result(), 1, generation);
+        assertNull(cache.get(KEY));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBeyondThePointBudget()
+    {
+        RangeQueryCache cache = new RangeQueryCache(10, 60000);
+        RangeQueryCache.Key other = new RangeQueryCache.Key("other", "2022-11-01T00:00Z", "2022-12-01T00:00Z", 500, Downsampler.METHOD_LTTB);
+        cache.put(KEY, result(), 6, cache.getGeneration());
+        cache.put(other, result(), 6, cache.getGeneration());
+        assertNull(cache.get(KEY));
+        assertNotNull(cache.get(other));
+    }
+}
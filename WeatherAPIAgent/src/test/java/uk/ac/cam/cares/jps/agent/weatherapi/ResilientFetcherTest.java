@@ -0,0 +1,241 @@
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.Assert.*;
+
+public class ResilientFetcherTest
+{
+    private static final String BODY = "{\"items\":[]}";
+
+    @Rule
+    public WireMockRule wireMock = new WireMockRule(options().dynamicPort());
+
+    private final CloseableHttpClient client = HttpClients.createDefault();
+
+    @After
+    public void closeClient() throws IOException
+    {
+        client.close();
+    }
+
+    // Breaker state is kept per upstream URL across fetchers, so every test names its own upstream
+    private ResilientFetcher fetcher(String upstream, int maxAttempts, long maxRetryAfter, int failureThreshold, long openTime, boolean hedging)
+    {
+        return new ResilientFetcher(wireMock.baseUrl() + "/" + upstream, maxAttempts, 0, 0, maxRetryAfter, failureThreshold, openTime, hedging, 100);
+    }
+
+    private JSONObject fetch(ResilientFetcher fetcher, String feed)
+    {
+        return fetch(fetcher, feed, client);
+    }
+
+    private JSONObject fetch(ResilientFetcher fetcher, String feed, CloseableHttpClient client)
+    {
+        APIConnector connector = new APIConnector(wireMock.baseUrl() + "/", "2022-11-29T18%3A00%3A00", feed, client);
+        connector.setFetcher(fetcher);
+        return connector.getWeatherReadings();
+    }
+
+    private static String path(String feed)
+    {
+        return "/v1/environment/" + feed;
+    }
+
+    // First request answered with the given response, every later one with 200
+    private void stubFailureThenSuccess(String feed, ResponseDefinitionBuilder failure)
+    {
+        wireMock.stubFor(get(urlPathEqualTo(path(feed))).inScenario(feed).whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(failure).willSetStateTo("recovered"));
+        wireMock.stubFor(get(urlPathEqualTo(path(feed))).inScenario(feed).whenScenarioStateIs("recovered")
+                .willReturn(aResponse().withStatus(200).withBody(BODY)));
+    }
+
+    @Test
+    public void serverErrorIsRetriedUntilItSucceeds()
+    {
+        stubFailureThenSuccess("retry", aResponse().withStatus(503));
+        ResilientFetcher fetcher = fetcher("retry", 3, 60000, 5, 30000, false);
+
+        assertTrue(fetch(fetcher, "retry").has("items"));
+        wireMock.verify(2, getRequestedFor(urlPathEqualTo(path("retry"))));
+        assertEquals(1, fetcher.getStatistics().getLong("retries"));
+        assertEquals("CLOSED", fetcher.getStatistics().getString("breakerState"));
+    }
+
+    @Test
+    public void retryAfterInSecondsIsWaitedFor()
+    {
+        stubFailureThenSuccess("retry-seconds", aResponse().withStatus(429).withHeader("Retry-After", "1"));
+        ResilientFetcher fetcher = fetcher("retry-seconds", 3, 60000, 5, 30000, false);
+
+        long start = System.nanoTime();
+        assertTrue(fetch(fetcher, "retry-seconds").has("items"));
+        assertTrue((System.nanoTime() - start) / 1_000_000 >= 1000);
+        wireMock.verify(2, getRequestedFor(urlPathEqualTo(path("retry-seconds"))));
+    }
+
+    @Test
+    public void retryAfterAsHttpDateIsWaitedFor()
+    {
+        // HTTP dates have whole seconds, so 3 s ahead means a wait of more than 2 s
+        String date = DateUtils.formatDate(new Date(System.currentTimeMillis() + 3000));
+        stubFailureThenSuccess("retry-date", aResponse().withStatus(503).withHeader("Retry-After", date));
+        ResilientFetcher fetcher = fetcher("retry-date", 3, 60000, 5, 30000, false);
+
+        long start = System.nanoTime();
+        assertTrue(fetch(fetcher, "retry-date").has("items"));
+        assertTrue((System.nanoTime() - start) / 1_000_000 >= 1000);
+        wireMock.verify(2, getRequestedFor(urlPathEqualTo(path("retry-date"))));
+    }
+
+    @Test
+    public void retryAfterBeyondTheMaximumIsNotRetried()
+    {
+        stubFailureThenSuccess("retry-long", aResponse().withStatus(503).withHeader("Retry-After", "120"));
+        ResilientFetcher fetcher = fetcher("retry-long", 3, 1000, 5, 30000, false);
+
+        long start = System.nanoTime();
+        assertThrows(JPSRuntimeException.class, () -> fetch(fetcher, "retry-long"));
+        assertTrue((System.nanoTime() - start) / 1_000_000 < 1000);
+        wireMock.verify(1, getRequestedFor(urlPathEqualTo(path("retry-long"))));
+        assertEquals(0, fetcher.getStatistics().getLong("retries"));
+    }
+
+    @Test
+    public void clientErrorIsNotRetriedNorCountedAgainstTheBreaker()
+    {
+        wireMock.stubFor(get(urlPathEqualTo(path("not-found"))).willReturn(aResponse().withStatus(404)));
+        ResilientFetcher fetcher = fetcher("not-found", 3, 60000, 2, 30000, false);
+
+        for(int i=0;i<3;i++)
+        {
+            assertThrows(JPSRuntimeException.class, () -> fetch(fetcher, "not-found"));
+        }
+        // One request per fetch, and the breaker stays closed past its threshold of 2
+        wireMock.verify(3, getRequestedFor(urlPathEqualTo(path("not-found"))));
+        assertEquals("CLOSED", fetcher.getStatistics().getString("breakerState"));
+        assertEquals(0, fetcher.getStatistics().getInt("consecutiveFailures"));
+        assertEquals(0, fetcher.getStatistics().getLong("retries"));
+    }
+
+    @Test
+    public void breakerOpensShortCircuitsAndLetsOneTrialThrough() throws Exception
+    {
+        wireMock.stubFor(get(urlPathEqualTo(path("breaker"))).willReturn(aResponse().withStatus(500)));
+        ResilientFetcher fetcher = fetcher("breaker", 1, 60000, 2, 300, false);
+
+        assertThrows(JPSRuntimeException.class, () -> fetch(fetcher, "breaker"));
+        assertEquals("CLOSED", fetcher.getStatistics().getString("breakerState"));
+        assertThrows(JPSRuntimeException.class, () -> fetch(fetcher, "breaker"));
+        assertEquals("OPEN", fetcher.getStatistics().getString("breakerState"));
+
+        assertThrows(ResilientFetcher.CircuitOpenException.class, () -> fetch(fetcher, "breaker"));
+        wireMock.verify(2, getRequestedFor(urlPathEqualTo(path("breaker"))));
+        assertEquals(1, fetcher.getStatistics().getLong("shortCircuited"));
+
+        // A failed trial opens the breaker again straight away
+        Thread.sleep(350);
+        assertThrows(JPSRuntimeException.class, () -> fetch(fetcher, "breaker"));
+        wireMock.verify(3, getRequestedFor(urlPathEqualTo(path("breaker"))));
+        assertEquals("OPEN", fetcher.getStatistics().getString("breakerState"));
+        assertEquals(2, fetcher.getStatistics().getLong("timesOpened"));
+
+        // While the trial is in flight every other request is short-circuited; its success closes the breaker
+        wireMock.stubFor(get(urlPathEqualTo(path("breaker"))).willReturn(aResponse().withStatus(200).withBody(BODY).withFixedDelay(500)));
+        Thread.sleep(350);
+        CompletableFuture<JSONObject> trial = CompletableFuture.supplyAsync(() -> fetch(fetcher, "breaker"));
+        Thread.sleep(100);
+        assertThrows(ResilientFetcher.CircuitOpenException.class, () -> fetch(fetcher, "breaker"));
+        assertTrue(trial.get().has("items"));
+        assertEquals("CLOSED", fetcher.getStatistics().getString("breakerState"));
+        wireMock.verify(4, getRequestedFor(urlPathEqualTo(path("breaker"))));
+    }
+
+    @Test
+    public void trialEndingWithAnErrorFreesTheTrialSlot() throws Exception
+    {
+        ResilientFetcher fetcher = new ResilientFetcher("error-trial", 1, 0, 0, 0, 1, 50, false, 0);
+        assertThrows(IOException.class, () -> fetcher.fetch(cancellation -> { throw new IOException("down"); }));
+        assertEquals("OPEN", fetcher.getStatistics().getString("breakerState"));
+
+        Thread.sleep(80);
+        assertThrows(StackOverflowError.class, () -> fetcher.fetch(cancellation -> { throw new StackOverflowError(); }));
+        assertNotNull(fetcher.fetch(cancellation -> new JSONObject()));
+        assertEquals("CLOSED", fetcher.getStatistics().getString("breakerState"));
+    }
+
+    @Test
+    public void hedgeIsSentAfterTheP95AndTheFirstSuccessWins()
+    {
+        ResilientFetcher fetcher = fetcher("hedge", 1, 60000, 5, 30000, true);
+
+        // Enough fast answers for a p95, which stays below the minimum hedge delay of 100 ms
+        wireMock.stubFor(get(urlPathEqualTo(path("hedge-warmup"))).willReturn(aResponse().withStatus(200).withBody(BODY)));
+        for(int i=0;i<20;i++)
+        {
+            fetch(fetcher, "hedge-warmup");
+        }
+        assertEquals(0, fetcher.getStatistics().getLong("hedges"));
+
+        // The first request hangs, the hedge sent after 100 ms is answered at once
+        wireMock.stubFor(get(urlPathEqualTo(path("hedge"))).inScenario("hedge").whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withStatus(200).withBody(BODY).withFixedDelay(3000)).willSetStateTo("hedged"));
+        wireMock.stubFor(get(urlPathEqualTo(path("hedge"))).inScenario("hedge").whenScenarioStateIs("hedged")
+                .willReturn(aResponse().withStatus(200).withBody(BODY)));
+
+        long start = System.nanoTime();
+        assertTrue(fetch(fetcher, "hedge").has("items"));
+        assertTrue((System.nanoTime() - start) / 1_000_000 < 2000);
+        wireMock.verify(2, getRequestedFor(urlPathEqualTo(path("hedge"))));
+        assertEquals(1, fetcher.getStatistics().getLong("hedges"));
+        assertEquals(1, fetcher.getStatistics().getLong("hedgeWins"));
+    }
+
+    @Test
+    public void losingRequestIsAbortedAndGivesBackItsConnection() throws Exception
+    {
+        PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+        try(CloseableHttpClient pooled = HttpClients.custom().setConnectionManager(pool).build())
+        {
+            ResilientFetcher fetcher = fetcher("hedge-abort", 1, 60000, 5, 30000, true);
+            wireMock.stubFor(get(urlPathEqualTo(path("hedge-abort-warmup"))).willReturn(aResponse().withStatus(200).withBody(BODY)));
+            for(int i=0;i<20;i++)
+            {
+                fetch(fetcher, "hedge-abort-warmup", pooled);
+            }
+
+            wireMock.stubFor(get(urlPathEqualTo(path("hedge-abort"))).inScenario("hedge-abort").whenScenarioStateIs(Scenario.STARTED)
+                    .willReturn(aResponse().withStatus(200).withBody(BODY).withFixedDelay(5000)).willSetStateTo("hedged"));
+            wireMock.stubFor(get(urlPathEqualTo(path("hedge-abort"))).inScenario("hedge-abort").whenScenarioStateIs("hedged")
+                    .willReturn(aResponse().withStatus(200).withBody(BODY)));
+
+            long start = System.nanoTime();
+            assertTrue(fetch(fetcher, "hedge-abort", pooled).has("items"));
+            assertEquals(1, fetcher.getStatistics().getLong("hedgeWins"));
+
+            // Without the abort the first request would keep its connection leased until its response after 5 s
+            while(pool.getTotalStats().getLeased()>0 && (System.nanoTime() - start) / 1_000_000 < 4000)
+            {
+                Thread.sleep(20);
+            }
+            assertEquals(0, pool.getTotalStats().getLeased());
+            assertTrue((System.nanoTime() - start) / 1_000_000 < 2000);
+        }
+    }
+}